@@ -1,7 +1,30 @@
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 class Money
 {
@@ -75,11 +98,23 @@ class PayReq
 {
     private final Payer payer;
     private final Money amt;
+    private final long deadlineMillis;
 
     public PayReq(Payer p, Money amt)
+    {
+        this(p, amt, 0);
+    }
+
+    public PayReq(Payer p, Money amt, long deadlineMillis)
     {
         this.payer = p;
         this.amt = amt;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public long getDeadlineMillis()
+    {
+        return deadlineMillis;
     }
 
     public Payer getPayer()
@@ -98,12 +133,26 @@ class PayResp
     private final String txId;
     private final boolean ok;
     private final String msg;
+    private final boolean rejected;
+    private final boolean pending;
 
     public PayResp(String txId, boolean ok, String msg)
+    {
+        this(txId, ok, msg, false);
+    }
+
+    public PayResp(String txId, boolean ok, String msg, boolean rejected)
+    {
+        this(txId, ok, msg, rejected, false);
+    }
+
+    public PayResp(String txId, boolean ok, String msg, boolean rejected, boolean pending)
     {
         this.txId = txId;
         this.ok = ok;
         this.msg = msg;
+        this.rejected = rejected;
+        this.pending = pending;
     }
 
     public String getTxId()
@@ -121,10 +170,25 @@ class PayResp
         return msg;
     }
 
+    // true when the payment was never attempted (bulkhead full or circuit open), so the
+    // caller may retry later without treating it as a declined charge
+    public boolean isRejected()
+    {
+        return rejected;
+    }
+
+    // true when the payment was submitted but its outcome is not known yet; the record
+    // stays PENDING and must not be charged again
+    public boolean isPending()
+    {
+        return pending;
+    }
+
     @Override
     public String toString()
     {
-        return "txId=" + txId + " ok=" + ok + " msg=" + msg;
+        return "txId=" + txId + " ok=" + ok + " msg=" + msg + (rejected ? " rejected" : "")
+                + (pending ? " pending" : "");
     }
 }
 
@@ -138,6 +202,22 @@ interface IRefund
     PayResp refund(String txId, Money amt);
 }
 
+interface IAsyncPayment
+{
+    CompletableFuture<PayResp> payAsync(PayReq req);
+}
+
+interface IBatchPayment
+{
+    List<PayResp> payBatch(List<PayReq> reqs);
+
+    // false when payBatch would only loop over pay(); callers should then fan out instead
+    default boolean batches()
+    {
+        return true;
+    }
+}
+
 interface ITransactionStore
 {
     void save(Transaction t);
@@ -145,6 +225,63 @@ interface ITransactionStore
     Transaction find(String txId);
 
     List<Transaction> getAll();
+
+    default Iterator<Transaction> cursor()
+    {
+        return getAll().iterator();
+    }
+
+    default Spliterator<Transaction> spliterator()
+    {
+        return getAll().spliterator();
+    }
+
+    default List<Transaction> findByPayer(String payerId)
+    {
+        List<Transaction> out = new ArrayList<>();
+        for (Transaction t : getAll())
+        {
+            if (t.getPayer().getId().equals(payerId))
+            {
+                out.add(t);
+            }
+        }
+        return out;
+    }
+
+    default List<Transaction> findByStatus(Transaction.Status status)
+    {
+        List<Transaction> out = new ArrayList<>();
+        for (Transaction t : getAll())
+        {
+            if (t.getStatus() == status)
+            {
+                out.add(t);
+            }
+        }
+        return out;
+    }
+
+    default List<Transaction> findByMethod(String method)
+    {
+        List<Transaction> out = new ArrayList<>();
+        for (Transaction t : getAll())
+        {
+            if (t.getMethod().equals(method))
+            {
+                out.add(t);
+            }
+        }
+        return out;
+    }
+
+    default <T> T withTxLock(String txId, Supplier<T> action)
+    {
+        synchronized (this)
+        {
+            return action.get();
+        }
+    }
 }
 
 class Transaction
@@ -158,9 +295,9 @@ class Transaction
     private final String method;
     private final Payer payer;
     private final Money amt;
-    private Status status;
+    private volatile Status status;
     private final Date ts;
-    private Date updated;
+    private volatile Date updated;
 
     public Transaction(String id, String method, Payer p, Money amt, Status st)
     {
@@ -173,6 +310,17 @@ class Transaction
         this.updated = ts;
     }
 
+    public Transaction(String id, String method, Payer p, Money amt, Status st, long ts, long updated)
+    {
+        this.id = id;
+        this.method = method;
+        this.payer = p;
+        this.amt = amt;
+        this.status = st;
+        this.ts = new Date(ts);
+        this.updated = new Date(updated);
+    }
+
     public String getId()
     {
         return id;
@@ -198,6 +346,16 @@ class Transaction
         return status;
     }
 
+    public Date getTs()
+    {
+        return ts;
+    }
+
+    public Date getUpdated()
+    {
+        return updated;
+    }
+
     public void setStatus(Status s)
     {
         this.status = s;
@@ -226,8 +384,40 @@ class Transaction
     public static Transaction fromCsv(String csv)
     {
         String[] parts = csv.split(",");
-        if (parts.length != 7) throw new IllegalArgumentException("Invalid CSV");
-        return new Transaction(parts[0], parts[1], new Payer(parts[2], parts[3]), new Money(Long.parseLong(parts[4]), parts[5]), Transaction.Status.valueOf(parts[6]));
+        if (parts.length < 7) throw new IllegalArgumentException("Invalid CSV");
+        int n = parts.length;
+        String name = n == 7 ? parts[3] : String.join(",", Arrays.copyOfRange(parts, 3, n - 3));
+        return new Transaction(parts[0], parts[1], new Payer(parts[2], name), new Money(Long.parseLong(parts[n - 3]), parts[n - 2]), Transaction.Status.valueOf(parts[n - 1]));
+    }
+}
+
+class StripedLocks
+{
+    private final ReentrantLock[] locks;
+
+    public StripedLocks(int stripes)
+    {
+        int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++)
+        {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public <T> T withLock(String key, Supplier<T> action)
+    {
+        int h = key.hashCode();
+        ReentrantLock lock = locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+        lock.lock();
+        try
+        {
+            return action.get();
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 }
 
@@ -252,55 +442,39 @@ class MemTxStore implements ITransactionStore
     {
         return new ArrayList<>(map.values());
     }
+
+    @Override
+    public Iterator<Transaction> cursor()
+    {
+        return map.values().iterator();
+    }
+
+    @Override
+    public Spliterator<Transaction> spliterator()
+    {
+        return map.values().spliterator();
+    }
 }
 
-class FileTxStore implements ITransactionStore
+class ConcurrentTxStore implements ITransactionStore
 {
-    private final Map<String, Transaction> map = new HashMap<>();
-    private final String filePath;
+    private final Map<String, Transaction> map = new ConcurrentHashMap<>();
+    private final StripedLocks locks;
 
-    public FileTxStore(String filePath)
+    public ConcurrentTxStore()
     {
-        this.filePath = filePath;
-        loadFromFile();
+        this(64);
     }
 
-    private void loadFromFile()
+    public ConcurrentTxStore(int stripes)
     {
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath)))
-        {
-            String line;
-            while ((line = br.readLine()) != null)
-            {
-                if (!line.trim().isEmpty())
-                {
-                    Transaction t = Transaction.fromCsv(line);
-                    map.put(t.getId(), t);
-                }
-            }
-        }
-        catch (IOException e)
-        {
-        }
+        this.locks = new StripedLocks(stripes);
     }
 
     @Override
     public void save(Transaction t)
     {
         map.put(t.getId(), t);
-        appendToFile(t);
-    }
-
-    private void appendToFile(Transaction t)
-    {
-        try (FileWriter fw = new FileWriter(filePath, true))
-        {
-            fw.write(t.toCsv() + "\n");
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-        }
     }
 
     @Override
@@ -314,470 +488,4547 @@ class FileTxStore implements ITransactionStore
     {
         return new ArrayList<>(map.values());
     }
-}
 
-class IdGen
-{
-    private final AtomicLong c = new AtomicLong(1000);
+    @Override
+    public Iterator<Transaction> cursor()
+    {
+        return map.values().iterator();
+    }
 
-    public String next(String prefix)
+    @Override
+    public Spliterator<Transaction> spliterator()
     {
-        return prefix + c.getAndIncrement();
+        return map.values().spliterator();
     }
-}
 
-interface IValidator<T>
-{
-    void validate(T t) throws ValidationException;
+    @Override
+    public <T> T withTxLock(String txId, Supplier<T> action)
+    {
+        return locks.withLock(txId, action);
+    }
 }
 
-class PayReqValidator implements IValidator<PayReq>
+class FileTxStore implements ITransactionStore
 {
-    @Override
-    public void validate(PayReq r) throws ValidationException
+    private final Map<String, Transaction> map = new ConcurrentHashMap<>();
+    private final String filePath;
+    private final String snapshotPath;
+    private final GroupCommitLog wal;
+    private final ReadWriteLock compaction = new ReentrantReadWriteLock();
+    private final StripedLocks locks = new StripedLocks(64);
+    private ScheduledExecutorService compactor;
+
+    public FileTxStore(String filePath)
     {
-        if (r.getAmt() == null)
+        this.filePath = filePath;
+        this.snapshotPath = filePath + ".snapshot";
+        this.wal = null;
+        loadFromFile();
+    }
+
+    public FileTxStore(String filePath, long walWindowMillis, int walMaxBatchBytes) throws IOException
+    {
+        this.filePath = filePath;
+        this.snapshotPath = filePath + ".snapshot";
+        loadFromFile();
+        this.wal = new GroupCommitLog(filePath, walWindowMillis, walMaxBatchBytes);
+    }
+
+    private void loadFromFile()
+    {
+        ChunkedTxLoader loader = new ChunkedTxLoader(ForkJoinPool.commonPool(), 4 * 1024 * 1024);
+        long start = System.nanoTime();
+        long n = 0;
+        try
         {
-            throw new ValidationException("Amount is null");
+            for (Path p : sources(filePath))
+            {
+                n += loader.load(p.toString(), map);
+            }
         }
-        if (r.getAmt().getAmount() <= 0)
+        catch (IOException e)
         {
-            throw new ValidationException("Amount must be positive");
+            System.out.println("Error loading transactions: " + e.getMessage());
         }
-        if (r.getPayer() == null)
+        if (n > 0)
         {
-            throw new ValidationException("Payer is null");
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Loaded %d transaction records in %.1f ms (%.0f records/sec)%n", n, secs * 1000,
+                    n / Math.max(secs, 1e-9));
         }
     }
-}
-
-class CardPayment implements IPayment, IRefund
-{
-    private final ITransactionStore store;
-    private final IdGen idg;
-
-    public CardPayment(ITransactionStore s, IdGen idg)
-    {
-        this.store = s;
-        this.idg = idg;
-    }
 
     @Override
-    public PayResp pay(PayReq req)
+    public void save(Transaction t)
     {
-        String tx = idg.next("CARD-");
-        Transaction t = new Transaction(tx, "CARD", req.getPayer(), req.getAmt(), Transaction.Status.PENDING);
-        store.save(t);
-        boolean ok = true;
-        if (ok)
+        compaction.readLock().lock();
+        try
         {
-            t.setStatus(Transaction.Status.SUCCESS);
-            store.save(t);
-            return new PayResp(tx, true, "card success");
+            if (wal != null)
+            {
+                // the caller may only acknowledge the payment once this returns
+                wal.append(t.toCsv() + "\n");
+            }
+            else
+            {
+                appendToFile(t);
+            }
+            map.put(t.getId(), t);
         }
-        else
+        catch (IOException e)
         {
-            t.setStatus(Transaction.Status.FAILED);
-            store.save(t);
-            return new PayResp(tx, false, "card failed");
+            throw new UncheckedIOException("transaction not durable: " + t.getId(), e);
+        }
+        finally
+        {
+            compaction.readLock().unlock();
         }
     }
 
-    @Override
-    public PayResp refund(String txId, Money amt)
+    private void appendToFile(Transaction t)
     {
-        Transaction t = store.find(txId);
-        if (t == null)
+        try (FileWriter fw = new FileWriter(filePath, true))
         {
-            return new PayResp("", false, "tx not found");
+            fw.write(t.toCsv() + "\n");
         }
-        if (!t.getMethod().equals("CARD"))
+        catch (IOException e)
         {
-            return new PayResp(txId, false, "method mismatch");
+            e.printStackTrace();
         }
-        Transaction r = new Transaction(idg.next("R-"), "CARD-REFUND", t.getPayer(), amt,
-                Transaction.Status.REFUNDED);
-        store.save(r);
-        t.setStatus(Transaction.Status.REFUNDED);
-        store.save(t);
-        return new PayResp(r.getId(), true, "refund success");
     }
-}
-
-class UpiPayment implements IPayment, IRefund
-{
-    private final ITransactionStore s;
-    private final IdGen g;
 
-    public UpiPayment(ITransactionStore s, IdGen g)
+    // Files that make up the store, in replay order: the snapshot, logs rotated out by
+    // compactions that had not finished, then the live log.
+    static List<Path> sources(String filePath) throws IOException
     {
-        this.s = s;
-        this.g = g;
+        List<Path> out = new ArrayList<>();
+        out.add(Paths.get(filePath + ".snapshot"));
+        out.addAll(rotatedLogs(filePath));
+        out.add(Paths.get(filePath));
+        return out;
     }
 
-    @Override
-    public PayResp pay(PayReq r)
+    private static List<Path> rotatedLogs(String filePath) throws IOException
     {
-        String tx = g.next("UPI-");
-        Transaction t = new Transaction(tx, "UPI", r.getPayer(), r.getAmt(), Transaction.Status.PENDING);
-        s.save(t);
-        boolean ok = sendToBank();
-        if (ok)
-        {
-            t.setStatus(Transaction.Status.SUCCESS);
-            s.save(t);
-            return new PayResp(tx, true, "upi success");
-        }
-        else
+        Path log = Paths.get(filePath).toAbsolutePath();
+        String prefix = log.getFileName() + ".old-";
+        TreeMap<Long, Path> bySeq = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(log.getParent(), prefix + "*"))
         {
-            t.setStatus(Transaction.Status.FAILED);
-            s.save(t);
-            return new PayResp(tx, false, "upi failed");
+            for (Path f : files)
+            {
+                try
+                {
+                    bySeq.put(Long.parseLong(f.getFileName().toString().substring(prefix.length())), f);
+                }
+                catch (NumberFormatException ignored)
+                {
+                }
+            }
         }
+        return new ArrayList<>(bySeq.values());
     }
 
-    @Override
-    public PayResp refund(String txId, Money amt)
+    // Writers are only held up while the log is switched to a fresh file; the snapshot is
+    // written afterwards from a copy of the live rows, then the rotated log is dropped.
+    public synchronized void compact() throws IOException
     {
-        Transaction t = s.find(txId);
-        if (t == null)
+        Path log = Paths.get(filePath).toAbsolutePath();
+        Path snap = Paths.get(snapshotPath);
+        Path tmp = Paths.get(snapshotPath + ".tmp");
+        List<Path> obsolete;
+        List<Transaction> live;
+        compaction.writeLock().lock();
+        try
         {
-            return new PayResp("", false, "tx not found");
+            obsolete = rotatedLogs(filePath);
+            long seq = 1;
+            if (!obsolete.isEmpty())
+            {
+                String last = obsolete.get(obsolete.size() - 1).getFileName().toString();
+                seq = Long.parseLong(last.substring(last.lastIndexOf('-') + 1)) + 1;
+            }
+            Path rotated = log.resolveSibling(log.getFileName() + ".old-" + seq);
+            if (wal != null)
+            {
+                wal.rotate(rotated);
+            }
+            else
+            {
+                if (!Files.exists(log))
+                {
+                    Files.createFile(log);
+                }
+                Files.move(log, rotated, StandardCopyOption.ATOMIC_MOVE);
+            }
+            obsolete.add(rotated);
+            live = new ArrayList<>(map.values());
         }
-        if (!t.getMethod().equals("UPI"))
+        finally
         {
-            return new PayResp(txId, false, "method mismatch");
+            compaction.writeLock().unlock();
         }
-        boolean ok = reverse();
-        if (ok)
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             Writer w = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8)))
         {
-            Transaction r = new Transaction(g.next("R-"), "UPI-REFUND", t.getPayer(), amt, Transaction.Status.REFUNDED);
-            s.save(r);
-            t.setStatus(Transaction.Status.REFUNDED);
-            s.save(t);
-            return new PayResp(r.getId(), true, "refund success");
+            for (Transaction t : live)
+            {
+                w.write(t.toCsv());
+                w.write('\n');
+            }
+            w.flush();
+            fos.getFD().sync();
         }
-        else
+        Files.move(tmp, snap, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (Path p : obsolete)
         {
-            return new PayResp("", false, "refund failed");
+            Files.deleteIfExists(p);
         }
     }
 
-    private boolean sendToBank()
-    {
-        return true;
-    }
-
-    private boolean reverse()
+    public synchronized void startCompactor(long intervalMillis, long minLogBytes)
     {
-        return true;
-    }
-}
-
-class PaymentService
+        if (compactor != null)
+        {
+            return;
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread th = new Thread(r, "tx-compactor");
+            th.setDaemon(true);
+            return th;
+        });
+        compactor.scheduleWithFixedDelay(() ->
+        {
+            try
+            {
+                File log = new File(filePath);
+                if (log.length() >= minLogBytes)
+                {
+                    compact();
+                }
+            }
+            catch (IOException e)
+            {
+                System.out.println("Error compacting transactions: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public <T> T withTxLock(String txId, Supplier<T> action)
+    {
+        return locks.withLock(txId, action);
+    }
+
+    @Override
+    public Transaction find(String txId)
+    {
+        return map.get(txId);
+    }
+
+    @Override
+    public List<Transaction> getAll()
+    {
+        return new ArrayList<>(map.values());
+    }
+
+    @Override
+    public Iterator<Transaction> cursor()
+    {
+        return map.values().iterator();
+    }
+
+    @Override
+    public Spliterator<Transaction> spliterator()
+    {
+        return map.values().spliterator();
+    }
+
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (compactor != null)
+            {
+                compactor.shutdownNow();
+            }
+        }
+        if (wal != null)
+        {
+            wal.close();
+        }
+    }
+}
+
+class ChunkedTxLoader
 {
-    private final Map<String, IPayment> payments = new HashMap<>();
-    private final IValidator<PayReq> v;
-    private final ITransactionStore s;
+    private final ForkJoinPool pool;
+    private final int chunkBytes;
 
-    public PaymentService(IValidator<PayReq> v, ITransactionStore s)
+    public ChunkedTxLoader(ForkJoinPool pool, int chunkBytes)
     {
-        this.v = v;
-        this.s = s;
+        this.pool = pool;
+        this.chunkBytes = chunkBytes;
     }
 
-    public void register(String key, IPayment p)
+    public long load(String path, Map<String, Transaction> into) throws IOException
     {
-        payments.put(key, p);
+        Path file = Paths.get(path);
+        if (!Files.exists(file))
+        {
+            return 0;
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = ch.size();
+            List<Long> bounds = chunkBounds(ch, size);
+            List<ForkJoinTask<Map<String, Transaction>>> tasks = new ArrayList<>();
+            long[] counts = new long[bounds.size() - 1];
+            for (int i = 0; i + 1 < bounds.size(); i++)
+            {
+                long from = bounds.get(i);
+                long to = bounds.get(i + 1);
+                int chunk = i;
+                tasks.add(pool.submit(() -> parse(ch.map(FileChannel.MapMode.READ_ONLY, from, to - from), counts, chunk)));
+            }
+            long n = 0;
+            for (int i = 0; i < tasks.size(); i++)
+            {
+                into.putAll(tasks.get(i).join());
+                n += counts[i];
+            }
+            return n;
+        }
     }
 
-    public PayResp execute(String method, PayReq req)
+    private List<Long> chunkBounds(FileChannel ch, long size) throws IOException
+    {
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = chunkBytes;
+        while (pos < size)
+        {
+            long nl = -1;
+            while (nl < 0 && pos < size)
+            {
+                probe.clear();
+                int r = ch.read(probe, pos);
+                if (r <= 0)
+                {
+                    break;
+                }
+                for (int i = 0; i < r; i++)
+                {
+                    if (probe.get(i) == '\n')
+                    {
+                        nl = pos + i + 1;
+                        break;
+                    }
+                }
+                if (nl < 0)
+                {
+                    pos += r;
+                }
+            }
+            if (nl < 0 || nl >= size)
+            {
+                break;
+            }
+            bounds.add(nl);
+            pos = nl + chunkBytes;
+        }
+        bounds.add(size);
+        return bounds;
+    }
+
+    private static Map<String, Transaction> parse(ByteBuffer buf, long[] counts, int chunk)
+    {
+        Map<String, Transaction> latest = new HashMap<>();
+        byte[] line = new byte[256];
+        int len = 0;
+        long n = 0;
+        while (buf.hasRemaining())
+        {
+            byte b = buf.get();
+            if (b == '\n')
+            {
+                n += parseLine(line, len, latest);
+                len = 0;
+            }
+            else
+            {
+                if (len == line.length)
+                {
+                    line = Arrays.copyOf(line, len * 2);
+                }
+                line[len++] = b;
+            }
+        }
+        n += parseLine(line, len, latest);
+        counts[chunk] = n;
+        return latest;
+    }
+
+    private static int parseLine(byte[] line, int len, Map<String, Transaction> latest)
+    {
+        if (len > 0 && line[len - 1] == '\r')
+        {
+            len--;
+        }
+        String s = new String(line, 0, len, StandardCharsets.UTF_8);
+        if (s.trim().isEmpty())
+        {
+            return 0;
+        }
+        Transaction t = Transaction.fromCsv(s);
+        latest.put(t.getId(), t);
+        return 1;
+    }
+}
+
+class GroupCommitLog implements Closeable
+{
+    private static final class Pending
+    {
+        private final byte[] data;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Pending(byte[] data)
+        {
+            this.data = data;
+        }
+    }
+
+    private final Path path;
+    private FileChannel ch;
+    private final long windowNanos;
+    private final int maxBatchBytes;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public GroupCommitLog(String filePath, long windowMillis, int maxBatchBytes) throws IOException
+    {
+        if (windowMillis < 0 || maxBatchBytes <= 0)
+        {
+            throw new IllegalArgumentException("invalid wal config");
+        }
+        this.path = Paths.get(filePath);
+        this.ch = open(path);
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatchBytes = maxBatchBytes;
+        this.writer = new Thread(this::run, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static FileChannel open(Path p) throws IOException
     {
+        return FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    public void append(String record) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("wal closed");
+        }
+        Pending p = new Pending(record.getBytes(StandardCharsets.UTF_8));
+        queue.add(p);
+        // close() may have raced us: if the writer is gone and nobody took p, fail it here
+        if (closed && queue.remove(p))
+        {
+            throw new IOException("wal closed");
+        }
         try
         {
-            v.validate(req);
+            p.done.get();
         }
-        catch (ValidationException e)
+        catch (InterruptedException e)
         {
-            return new PayResp("", false, e.getMessage());
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for commit");
         }
-        IPayment p = payments.get(method);
-        if (p == null)
+        catch (ExecutionException e)
         {
-            return new PayResp("", false, "method unsupported");
+            throw new IOException("commit failed", e.getCause());
+        }
+    }
+
+    private void run()
+    {
+        List<Pending> batch = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.allocateDirect(maxBatchBytes);
+        while (!closed || !queue.isEmpty())
+        {
+            try
+            {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    continue;
+                }
+                batch.add(first);
+                int bytes = first.data.length;
+                long deadline = System.nanoTime() + windowNanos;
+                while (bytes < maxBatchBytes)
+                {
+                    long wait = deadline - System.nanoTime();
+                    Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    batch.add(next);
+                    bytes += next.data.length;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty())
+            {
+                commit(batch, buf);
+                batch.clear();
+            }
+        }
+    }
+
+    private synchronized void commit(List<Pending> batch, ByteBuffer buf)
+    {
+        try
+        {
+            buf.clear();
+            for (Pending p : batch)
+            {
+                if (p.data.length > buf.remaining())
+                {
+                    flush(buf);
+                }
+                if (p.data.length > buf.capacity())
+                {
+                    writeFully(ByteBuffer.wrap(p.data));
+                }
+                else
+                {
+                    buf.put(p.data);
+                }
+            }
+            flush(buf);
+            ch.force(false);
+            for (Pending p : batch)
+            {
+                p.done.complete(null);
+            }
+        }
+        catch (IOException e)
+        {
+            for (Pending p : batch)
+            {
+                p.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void flush(ByteBuffer buf) throws IOException
+    {
+        buf.flip();
+        writeFully(buf);
+        buf.clear();
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException
+    {
+        while (b.hasRemaining())
+        {
+            ch.write(b);
+        }
+    }
+
+    public synchronized void truncate() throws IOException
+    {
+        ch.truncate(0);
+        ch.force(true);
+    }
+
+    // Moves the current log file aside and continues in a fresh one at the original path.
+    public synchronized void rotate(Path to) throws IOException
+    {
+        ch.force(true);
+        Files.move(path, to, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel old = ch;
+        ch = open(path);
+        old.close();
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        try
+        {
+            writer.join();
+            List<Pending> left = new ArrayList<>();
+            queue.drainTo(left);
+            for (Pending p : left)
+            {
+                p.done.completeExceptionally(new IOException("wal closed"));
+            }
+            synchronized (this)
+            {
+                ch.close();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Error closing wal: " + e.getMessage());
+        }
+    }
+}
+
+class MappedTxStore implements ITransactionStore, Closeable
+{
+    private final Path dir;
+    private final int segmentBytes;
+    // appended under the store lock, read lock-free by find/getAll/cursor
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> index = new ConcurrentHashMap<>();
+    private final ThreadLocal<TxCodec> codecs = ThreadLocal.withInitial(TxCodec::new);
+    private MappedByteBuffer current;
+    private int pos;
+    private boolean closed;
+
+    public MappedTxStore(String dir, int segmentBytes) throws IOException
+    {
+        if (segmentBytes < 64)
+        {
+            throw new IllegalArgumentException("segment too small");
+        }
+        this.dir = Paths.get(dir);
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(this.dir);
+        recover();
+    }
+
+    private Path segmentPath(int n)
+    {
+        return dir.resolve(String.format("segment-%06d.dat", n));
+    }
+
+    private MappedByteBuffer map(int n) throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(segmentPath(n), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE))
+        {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private void recover() throws IOException
+    {
+        TxCodec codec = codecs.get();
+        int n = 0;
+        while (Files.exists(segmentPath(n)))
+        {
+            MappedByteBuffer seg = map(n);
+            segments.add(seg);
+            ByteBuffer view = seg.duplicate();
+            int p = 0;
+            while (p < segmentBytes && view.get(p) != 0)
+            {
+                view.position(p);
+                index.put(codec.peekId(view), location(n, p));
+                p = view.position();
+            }
+            current = seg;
+            pos = p;
+            n++;
+        }
+        if (current == null)
+        {
+            roll();
+        }
+    }
+
+    private void roll() throws IOException
+    {
+        current = map(segments.size());
+        segments.add(current);
+        pos = 0;
+    }
+
+    private static long location(int segment, int offset)
+    {
+        return ((long) segment << 32) | offset;
+    }
+
+    @Override
+    public synchronized void save(Transaction t)
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("store closed");
+        }
+        TxCodec codec = codecs.get();
+        int size = codec.recordSize(t);
+        if (size > segmentBytes)
+        {
+            throw new IllegalArgumentException("record larger than segment: " + t.getId());
+        }
+        try
+        {
+            if (pos + size > segmentBytes)
+            {
+                roll();
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        current.position(pos);
+        codec.encode(t, current);
+        index.put(t.getId(), location(segments.size() - 1, pos));
+        pos += size;
+    }
+
+    @Override
+    public Transaction find(String txId)
+    {
+        Long loc = index.get(txId);
+        return loc == null ? null : read(loc);
+    }
+
+    @Override
+    public List<Transaction> getAll()
+    {
+        List<Transaction> all = new ArrayList<>(index.size());
+        for (Long loc : index.values())
+        {
+            all.add(read(loc));
+        }
+        return all;
+    }
+
+    @Override
+    public Iterator<Transaction> cursor()
+    {
+        Iterator<Long> locs = index.values().iterator();
+        return new Iterator<>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return locs.hasNext();
+            }
+
+            @Override
+            public Transaction next()
+            {
+                return read(locs.next());
+            }
+        };
+    }
+
+    public synchronized void force()
+    {
+        current.force();
+    }
+
+    // Flushes every segment and stops accepting writes. The mappings themselves are
+    // released when the buffers are collected; Java has no supported explicit unmap.
+    @Override
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        for (MappedByteBuffer seg : segments)
+        {
+            seg.force();
+        }
+    }
+
+    private Transaction read(long loc)
+    {
+        MappedByteBuffer seg = segments.get((int) (loc >>> 32));
+        return codecs.get().decode(seg.slice((int) loc, segmentBytes - (int) loc));
+    }
+}
+
+class TxCodec
+{
+    private static final String[] METHODS = {
+            "CARD", "UPI", "BANK_TRANSFER", "NETBANK", "RECURRING", "CARD-REFUND", "UPI-REFUND", "BT-REFUND"
+    };
+    private static final String[] CURRENCIES = { "INR", "USD", "EUR", "GBP" };
+    private static final Transaction.Status[] STATUSES = Transaction.Status.values();
+
+    private byte[] scratch = new byte[64];
+
+    public int recordSize(Transaction t)
+    {
+        int body = bodySize(t);
+        return varLongSize(body) + body;
+    }
+
+    public void encode(Transaction t, ByteBuffer out)
+    {
+        putVarLong(out, bodySize(t));
+        putStr(out, t.getId());
+        putCode(out, METHODS, t.getMethod());
+        putStr(out, t.getPayer().getId());
+        putStr(out, t.getPayer().getName());
+        putVarLong(out, t.getAmt().getAmount());
+        putCode(out, CURRENCIES, t.getAmt().getCurrency());
+        out.put((byte) t.getStatus().ordinal());
+        putVarLong(out, t.getTs().getTime());
+        putVarLong(out, t.getUpdated().getTime());
+    }
+
+    public Transaction decode(ByteBuffer in)
+    {
+        getVarLong(in);
+        String id = getStr(in);
+        String method = getCode(in, METHODS);
+        String payerId = getStr(in);
+        String payerName = getStr(in);
+        long amount = getVarLong(in);
+        String currency = getCode(in, CURRENCIES);
+        Transaction.Status st = STATUSES[in.get()];
+        long ts = getVarLong(in);
+        long updated = getVarLong(in);
+        return new Transaction(id, method, new Payer(payerId, payerName), new Money(amount, currency), st, ts, updated);
+    }
+
+    public String peekId(ByteBuffer in)
+    {
+        int len = (int) getVarLong(in);
+        int end = in.position() + len;
+        String id = getStr(in);
+        in.position(end);
+        return id;
+    }
+
+    private int bodySize(Transaction t)
+    {
+        return strSize(t.getId())
+                + codeSize(METHODS, t.getMethod())
+                + strSize(t.getPayer().getId())
+                + strSize(t.getPayer().getName())
+                + varLongSize(t.getAmt().getAmount())
+                + codeSize(CURRENCIES, t.getAmt().getCurrency())
+                + 1
+                + varLongSize(t.getTs().getTime())
+                + varLongSize(t.getUpdated().getTime());
+    }
+
+    private static int indexOf(String[] table, String s)
+    {
+        for (int i = 0; i < table.length; i++)
+        {
+            if (table[i].equals(s))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int codeSize(String[] table, String s)
+    {
+        return indexOf(table, s) >= 0 ? 1 : 1 + strSize(s);
+    }
+
+    private static void putCode(ByteBuffer out, String[] table, String s)
+    {
+        int i = indexOf(table, s);
+        out.put((byte) (i + 1));
+        if (i < 0)
+        {
+            putStr(out, s);
+        }
+    }
+
+    private String getCode(ByteBuffer in, String[] table)
+    {
+        int c = in.get();
+        return c == 0 ? getStr(in) : table[c - 1];
+    }
+
+    private static int utf8Length(String s)
+    {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+            {
+                n += 1;
+            }
+            else if (c < 0x800)
+            {
+                n += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                n += 4;
+                i++;
+            }
+            else
+            {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    private static int strSize(String s)
+    {
+        int len = utf8Length(s);
+        return varLongSize(len) + len;
+    }
+
+    private static void putStr(ByteBuffer out, String s)
+    {
+        putVarLong(out, utf8Length(s));
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+            {
+                out.put((byte) c);
+            }
+            else if (c < 0x800)
+            {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            }
+            else
+            {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private String getStr(ByteBuffer in)
+    {
+        int len = (int) getVarLong(in);
+        if (scratch.length < len)
+        {
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        }
+        in.get(scratch, 0, len);
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private static int varLongSize(long v)
+    {
+        int n = 1;
+        while ((v & ~0x7FL) != 0)
+        {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static void putVarLong(ByteBuffer out, long v)
+    {
+        while ((v & ~0x7FL) != 0)
+        {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long getVarLong(ByteBuffer in)
+    {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while (b < 0);
+        return v;
+    }
+}
+
+class TxMigrator
+{
+    // Reads the store's files in the same order FileTxStore replays them, so rows already
+    // compacted into the snapshot are migrated too and later records win.
+    public static int migrate(String csvPath, String dir, int segmentBytes) throws IOException
+    {
+        int n = 0;
+        try (MappedTxStore out = new MappedTxStore(dir, segmentBytes))
+        {
+            for (Path src : FileTxStore.sources(csvPath))
+            {
+                if (!Files.exists(src))
+                {
+                    continue;
+                }
+                try (BufferedReader br = Files.newBufferedReader(src, StandardCharsets.UTF_8))
+                {
+                    String line;
+                    while ((line = br.readLine()) != null)
+                    {
+                        if (!line.trim().isEmpty())
+                        {
+                            out.save(Transaction.fromCsv(line));
+                            n++;
+                        }
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String src = args.length > 0 ? args[0] : "transactions.txt";
+        String dir = args.length > 1 ? args[1] : "txlog";
+        int n = migrate(src, dir, 64 * 1024 * 1024);
+        System.out.println("Migrated " + n + " records from " + src + " to " + dir);
+    }
+}
+
+class IdGen
+{
+    private final AtomicLong c = new AtomicLong(1000);
+
+    public String next(String prefix)
+    {
+        return prefix + nextValue();
+    }
+
+    protected long nextValue()
+    {
+        return c.getAndIncrement();
+    }
+}
+
+class SnowflakeIdGen extends IdGen
+{
+    static final long EPOCH = 1704067200000L;
+    private static final int NODE_BITS = 10;
+    private static final int SEQ_BITS = 12;
+    private static final long SEQ_MASK = (1L << SEQ_BITS) - 1;
+
+    private final long node;
+    private final AtomicLong state = new AtomicLong();
+
+    public SnowflakeIdGen(int node)
+    {
+        if (node < 0 || node >= 1 << NODE_BITS)
+        {
+            throw new IllegalArgumentException("node id out of range: " + node);
+        }
+        this.node = node;
+    }
+
+    public long nextId()
+    {
+        return nextValue();
+    }
+
+    @Override
+    protected long nextValue()
+    {
+        while (true)
+        {
+            long last = state.get();
+            long now = System.currentTimeMillis() - EPOCH;
+            long next = now > (last >>> SEQ_BITS) ? now << SEQ_BITS : last + 1;
+            if (state.compareAndSet(last, next))
+            {
+                return (next >>> SEQ_BITS) << (NODE_BITS + SEQ_BITS) | node << SEQ_BITS | (next & SEQ_MASK);
+            }
+        }
+    }
+
+    public static String render(String prefix, long id)
+    {
+        return prefix + id;
+    }
+
+    public static long timestampOf(long id)
+    {
+        return (id >>> (NODE_BITS + SEQ_BITS)) + EPOCH;
+    }
+
+    public static int nodeOf(long id)
+    {
+        return (int) ((id >>> SEQ_BITS) & ((1L << NODE_BITS) - 1));
+    }
+}
+
+class BlockIdGen extends IdGen
+{
+    private final Path hwmFile;
+    private final long blockSize;
+    private final AtomicLong c;
+    private volatile long limit;
+
+    public BlockIdGen(String path, long blockSize, long floor) throws IOException
+    {
+        if (blockSize <= 0)
+        {
+            throw new IllegalArgumentException("block size must be positive");
+        }
+        this.hwmFile = Paths.get(path);
+        this.blockSize = blockSize;
+        long hwm = floor;
+        if (Files.exists(hwmFile))
+        {
+            String txt = new String(Files.readAllBytes(hwmFile), StandardCharsets.UTF_8).trim();
+            if (!txt.isEmpty())
+            {
+                hwm = Math.max(hwm, Long.parseLong(txt));
+            }
+        }
+        this.c = new AtomicLong(hwm);
+        this.limit = hwm;
+    }
+
+    @Override
+    protected long nextValue()
+    {
+        long v = c.getAndIncrement();
+        if (v >= limit)
+        {
+            reserve(v);
+        }
+        return v;
+    }
+
+    private synchronized void reserve(long v)
+    {
+        long next = limit;
+        while (v >= next)
+        {
+            next += blockSize;
+        }
+        if (next == limit)
+        {
+            return;
+        }
+        try
+        {
+            Path tmp = Paths.get(hwmFile + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile()))
+            {
+                fos.write(Long.toString(next).getBytes(StandardCharsets.UTF_8));
+                fos.getFD().sync();
+            }
+            Files.move(tmp, hwmFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("cannot reserve id block", e);
+        }
+        limit = next;
+    }
+
+    public static long floorOf(ITransactionStore store)
+    {
+        long max = 999;
+        for (Transaction t : store.getAll())
+        {
+            String id = t.getId();
+            int i = id.length();
+            while (i > 0 && Character.isDigit(id.charAt(i - 1)))
+            {
+                i--;
+            }
+            if (i < id.length() && id.length() - i < 19)
+            {
+                max = Math.max(max, Long.parseLong(id.substring(i)));
+            }
+        }
+        return max + 1;
+    }
+}
+
+interface IValidator<T>
+{
+    void validate(T t) throws ValidationException;
+}
+
+class PayReqValidator implements IValidator<PayReq>
+{
+    @Override
+    public void validate(PayReq r) throws ValidationException
+    {
+        if (r.getAmt() == null)
+        {
+            throw new ValidationException("Amount is null");
+        }
+        if (r.getAmt().getAmount() <= 0)
+        {
+            throw new ValidationException("Amount must be positive");
+        }
+        if (r.getPayer() == null)
+        {
+            throw new ValidationException("Payer is null");
+        }
+    }
+}
+
+class CardPayment implements IPayment, IRefund
+{
+    private final ITransactionStore store;
+    private final IdGen idg;
+
+    public CardPayment(ITransactionStore s, IdGen idg)
+    {
+        this.store = s;
+        this.idg = idg;
+    }
+
+    @Override
+    public PayResp pay(PayReq req)
+    {
+        String tx = idg.next("CARD-");
+        Transaction t = new Transaction(tx, "CARD", req.getPayer(), req.getAmt(), Transaction.Status.PENDING);
+        store.save(t);
+        boolean ok = true;
+        return store.withTxLock(tx, () ->
+        {
+            if (ok)
+            {
+                t.setStatus(Transaction.Status.SUCCESS);
+                store.save(t);
+                return new PayResp(tx, true, "card success");
+            }
+            else
+            {
+                t.setStatus(Transaction.Status.FAILED);
+                store.save(t);
+                return new PayResp(tx, false, "card failed");
+            }
+        });
+    }
+
+    @Override
+    public PayResp refund(String txId, Money amt)
+    {
+        return store.withTxLock(txId, () ->
+        {
+            Transaction t = store.find(txId);
+            if (t == null)
+            {
+                return new PayResp("", false, "tx not found");
+            }
+            if (!t.getMethod().equals("CARD"))
+            {
+                return new PayResp(txId, false, "method mismatch");
+            }
+            if (t.getStatus() == Transaction.Status.REFUNDED)
+            {
+                return new PayResp(txId, false, "already refunded");
+            }
+            if (t.getStatus() != Transaction.Status.SUCCESS)
+            {
+                return new PayResp(txId, false, "not refundable: " + t.getStatus());
+            }
+            Transaction r = new Transaction(idg.next("R-"), "CARD-REFUND", t.getPayer(), amt,
+                    Transaction.Status.REFUNDED);
+            store.save(r);
+            t.setStatus(Transaction.Status.REFUNDED);
+            store.save(t);
+            return new PayResp(r.getId(), true, "refund success");
+        });
+    }
+}
+
+interface IBankConnector
+{
+    IBankConnector ALWAYS_OK = new IBankConnector()
+    {
+        @Override
+        public boolean send(String txId, Money amt)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean reverse(String txId, Money amt)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean transfer(String txId, Money amt)
+        {
+            return true;
+        }
+    };
+
+    boolean send(String txId, Money amt);
+
+    boolean reverse(String txId, Money amt);
+
+    boolean transfer(String txId, Money amt);
+}
+
+interface IAsyncBankConnector
+{
+    CompletableFuture<Boolean> sendAsync(String txId, Money amt);
+
+    CompletableFuture<Boolean> reverseAsync(String txId, Money amt);
+
+    CompletableFuture<Boolean> transferAsync(String txId, Money amt);
+
+    // Bounds a call to the deadline; the returned future fails with TimeoutException if the
+    // bank has not answered by then. The call itself keeps running, so callers that gave up
+    // must compensate if it later succeeds.
+    default CompletableFuture<Boolean> withDeadline(CompletableFuture<Boolean> call, long deadlineMillis)
+    {
+        if (deadlineMillis <= 0)
+        {
+            return call;
+        }
+        CompletableFuture<Boolean> bounded = new CompletableFuture<>();
+        ScheduledFuture<?> timer = PaymentExecutors.timer().schedule(
+                () -> bounded.completeExceptionally(new TimeoutException("bank deadline exceeded")),
+                deadlineMillis, TimeUnit.MILLISECONDS);
+        call.whenComplete((ok, e) ->
+        {
+            timer.cancel(false);
+            if (e == null)
+            {
+                bounded.complete(ok);
+            }
+            else
+            {
+                bounded.completeExceptionally(e);
+            }
+        });
+        return bounded;
+    }
+
+    static IAsyncBankConnector of(IBankConnector bank, Executor ex)
+    {
+        if (bank instanceof IAsyncBankConnector a)
+        {
+            return a;
+        }
+        return new IAsyncBankConnector()
+        {
+            @Override
+            public CompletableFuture<Boolean> sendAsync(String txId, Money amt)
+            {
+                return CompletableFuture.supplyAsync(() -> bank.send(txId, amt), ex);
+            }
+
+            @Override
+            public CompletableFuture<Boolean> reverseAsync(String txId, Money amt)
+            {
+                return CompletableFuture.supplyAsync(() -> bank.reverse(txId, amt), ex);
+            }
+
+            @Override
+            public CompletableFuture<Boolean> transferAsync(String txId, Money amt)
+            {
+                return CompletableFuture.supplyAsync(() -> bank.transfer(txId, amt), ex);
+            }
+        };
+    }
+}
+
+interface LatencyModel
+{
+    long sampleMicros(Random rnd);
+
+    static LatencyModel fixed(long micros)
+    {
+        return rnd -> micros;
+    }
+
+    static LatencyModel uniform(long minMicros, long maxMicros)
+    {
+        return rnd -> minMicros + (long) (rnd.nextDouble() * (maxMicros - minMicros));
+    }
+
+    static LatencyModel logNormal(long medianMicros, double sigma)
+    {
+        return rnd -> (long) (medianMicros * Math.exp(sigma * rnd.nextGaussian()));
+    }
+
+    default LatencyModel withTail(double probability, long extraMicros)
+    {
+        return rnd -> sampleMicros(rnd) + (rnd.nextDouble() < probability ? extraMicros : 0);
+    }
+}
+
+class SimulatedBankConnector implements IBankConnector, IAsyncBankConnector
+{
+    private final LatencyModel latency;
+    private final long timeoutMicros;
+    private final double errorRate;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public SimulatedBankConnector(LatencyModel latency, long timeoutMillis, double errorRate)
+    {
+        this.latency = latency;
+        this.timeoutMicros = timeoutMillis * 1000;
+        this.errorRate = errorRate;
+    }
+
+    @Override
+    public boolean send(String txId, Money amt)
+    {
+        return call();
+    }
+
+    @Override
+    public boolean reverse(String txId, Money amt)
+    {
+        return call();
+    }
+
+    @Override
+    public boolean transfer(String txId, Money amt)
+    {
+        return call();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> sendAsync(String txId, Money amt)
+    {
+        return callAsync();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reverseAsync(String txId, Money amt)
+    {
+        return callAsync();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> transferAsync(String txId, Money amt)
+    {
+        return callAsync();
+    }
+
+    protected boolean call()
+    {
+        long micros = sample();
+        try
+        {
+            TimeUnit.MICROSECONDS.sleep(Math.min(micros, timeoutMicros));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return outcome(micros);
+    }
+
+    protected CompletableFuture<Boolean> callAsync()
+    {
+        long micros = sample();
+        CompletableFuture<Boolean> f = new CompletableFuture<>();
+        PaymentExecutors.timer().schedule(() -> f.complete(outcome(micros)), Math.min(micros, timeoutMicros), TimeUnit.MICROSECONDS);
+        return f;
+    }
+
+    private long sample()
+    {
+        calls.incrementAndGet();
+        return Math.max(0, latency.sampleMicros(ThreadLocalRandom.current()));
+    }
+
+    private boolean outcome(long micros)
+    {
+        if (micros > timeoutMicros)
+        {
+            timeouts.incrementAndGet();
+            return false;
+        }
+        if (ThreadLocalRandom.current().nextDouble() < errorRate)
+        {
+            errors.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    public long getTimeouts()
+    {
+        return timeouts.get();
+    }
+}
+
+class LatencyTracker
+{
+    private final long[] ring;
+    private final int minSamples;
+    private int next;
+    private int size;
+    private long recorded;
+    private volatile long cachedMicros = -1;
+
+    public LatencyTracker(int window, int minSamples)
+    {
+        this.ring = new long[window];
+        this.minSamples = minSamples;
+    }
+
+    public synchronized void record(long micros)
+    {
+        ring[next] = micros;
+        next = (next + 1) % ring.length;
+        size = Math.min(size + 1, ring.length);
+        if (++recorded % 64 == 0 && size >= minSamples)
+        {
+            long[] copy = Arrays.copyOf(ring, size);
+            Arrays.sort(copy);
+            cachedMicros = copy[Math.min(size - 1, (int) (size * 0.95))];
+        }
+    }
+
+    // -1 until enough samples have been seen
+    public long p95Micros()
+    {
+        return cachedMicros;
+    }
+}
+
+// Sends a duplicate of a send/transfer once it has been outstanding longer than the
+// observed p95 and takes whichever attempt succeeds first. Both attempts carry the same
+// txId, which the bank treats as the idempotency key: the duplicate is a retransmission of
+// one payment, never a second charge, so a losing attempt that also succeeds needs no
+// reversal (reversing by txId would undo the winning charge).
+class HedgingBankConnector implements IBankConnector, IAsyncBankConnector
+{
+    private final IAsyncBankConnector bank;
+    private final LatencyTracker latency;
+    private final double maxHedgeRatio;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong duplicateAcks = new AtomicLong();
+    private final AtomicLong deadlineMisses = new AtomicLong();
+
+    public HedgingBankConnector(IAsyncBankConnector bank)
+    {
+        this(bank, new LatencyTracker(1024, 100), 0.1);
+    }
+
+    public HedgingBankConnector(IAsyncBankConnector bank, LatencyTracker latency, double maxHedgeRatio)
+    {
+        this.bank = bank;
+        this.latency = latency;
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    @Override
+    public boolean send(String txId, Money amt)
+    {
+        return sendAsync(txId, amt).exceptionally(e -> false).join();
+    }
+
+    @Override
+    public boolean reverse(String txId, Money amt)
+    {
+        return reverseAsync(txId, amt).exceptionally(e -> false).join();
+    }
+
+    @Override
+    public boolean transfer(String txId, Money amt)
+    {
+        return transferAsync(txId, amt).exceptionally(e -> false).join();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> sendAsync(String txId, Money amt)
+    {
+        return hedged(() -> bank.sendAsync(txId, amt));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> reverseAsync(String txId, Money amt)
+    {
+        return bank.reverseAsync(txId, amt);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> transferAsync(String txId, Money amt)
+    {
+        return hedged(() -> bank.transferAsync(txId, amt));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> withDeadline(CompletableFuture<Boolean> call, long deadlineMillis)
+    {
+        CompletableFuture<Boolean> bounded = IAsyncBankConnector.super.withDeadline(call, deadlineMillis);
+        bounded.whenComplete((ok, e) ->
+        {
+            if (e instanceof TimeoutException)
+            {
+                deadlineMisses.incrementAndGet();
+            }
+        });
+        return bounded;
+    }
+
+    private CompletableFuture<Boolean> hedged(Supplier<CompletableFuture<Boolean>> attempt)
+    {
+        long n = calls.incrementAndGet();
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        // 0 = undecided, 1 = primary won, 2 = hedge won
+        AtomicInteger winner = new AtomicInteger();
+        AtomicInteger pending = new AtomicInteger(1);
+        Attempt outcome = (who, ok, e) ->
+        {
+            boolean success = e == null && ok;
+            if (success && winner.compareAndSet(0, who))
+            {
+                latency.record((System.nanoTime() - start) / 1000);
+                if (who == 2)
+                {
+                    hedgesWon.incrementAndGet();
+                }
+                result.complete(true);
+            }
+            else if (success)
+            {
+                // loser acknowledged the same payment; the bank deduplicated it on txId
+                duplicateAcks.incrementAndGet();
+            }
+            if (pending.decrementAndGet() == 0 && winner.get() == 0)
+            {
+                if (e != null)
+                {
+                    result.completeExceptionally(e);
+                }
+                else
+                {
+                    result.complete(false);
+                }
+            }
+        };
+        attempt.get().whenComplete((ok, e) -> outcome.accept(1, ok, e));
+        long p95 = latency.p95Micros();
+        if (p95 >= 0)
+        {
+            PaymentExecutors.timer().schedule(() ->
+            {
+                if (result.isDone() || hedgesFired.get() >= n * maxHedgeRatio)
+                {
+                    return;
+                }
+                // register the hedge before it can race the primary's final decrement
+                if (pending.getAndUpdate(p -> p == 0 ? 0 : p + 1) == 0)
+                {
+                    return;
+                }
+                hedgesFired.incrementAndGet();
+                attempt.get().whenComplete((ok, e) -> outcome.accept(2, ok, e));
+            }, p95, TimeUnit.MICROSECONDS);
+        }
+        return result;
+    }
+
+    private interface Attempt
+    {
+        void accept(int who, Boolean ok, Throwable e);
+    }
+
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+    public long getHedgesFired()
+    {
+        return hedgesFired.get();
+    }
+
+    public long getHedgesWon()
+    {
+        return hedgesWon.get();
+    }
+
+    public long getDuplicateAcks()
+    {
+        return duplicateAcks.get();
+    }
+
+    public long getDeadlineMisses()
+    {
+        return deadlineMisses.get();
+    }
+
+    public long getP95Micros()
+    {
+        return latency.p95Micros();
+    }
+}
+
+class UpiPayment implements IPayment, IRefund, IAsyncPayment
+{
+    private final ITransactionStore s;
+    private final IdGen g;
+    private final IBankConnector bank;
+    private final IAsyncBankConnector asyncBank;
+
+    public UpiPayment(ITransactionStore s, IdGen g)
+    {
+        this(s, g, IBankConnector.ALWAYS_OK);
+    }
+
+    public UpiPayment(ITransactionStore s, IdGen g, IBankConnector bank)
+    {
+        this.s = s;
+        this.g = g;
+        this.bank = bank;
+        this.asyncBank = IAsyncBankConnector.of(bank, PaymentExecutors.shared());
+    }
+
+    @Override
+    public PayResp pay(PayReq r)
+    {
+        String tx = g.next("UPI-");
+        Transaction t = new Transaction(tx, "UPI", r.getPayer(), r.getAmt(), Transaction.Status.PENDING);
+        s.save(t);
+        if (r.getDeadlineMillis() > 0)
+        {
+            return payAsync(t, r).join();
+        }
+        boolean ok = sendToBank(tx, r.getAmt());
+        return settle(t, ok);
+    }
+
+    @Override
+    public CompletableFuture<PayResp> payAsync(PayReq r)
+    {
+        String tx = g.next("UPI-");
+        Transaction t = new Transaction(tx, "UPI", r.getPayer(), r.getAmt(), Transaction.Status.PENDING);
+        s.save(t);
+        return payAsync(t, r);
+    }
+
+    private CompletableFuture<PayResp> payAsync(Transaction t, PayReq r)
+    {
+        String tx = t.getId();
+        CompletableFuture<Boolean> call = asyncBank.sendAsync(tx, r.getAmt());
+        CompletableFuture<PayResp> resp = asyncBank.withDeadline(call, r.getDeadlineMillis())
+                .exceptionally(e -> false)
+                .thenApplyAsync(ok -> settle(t, ok), PaymentExecutors.shared());
+        if (r.getDeadlineMillis() > 0)
+        {
+            call.thenAcceptBoth(resp, (ok, settled) ->
+            {
+                if (ok)
+                {
+                    reverseIfFailed(tx, r.getAmt());
+                }
+            });
+        }
+        return resp;
+    }
+
+    // The bank accepted a payment we already gave up on; undo it only if our record says FAILED.
+    private void reverseIfFailed(String tx, Money amt)
+    {
+        s.withTxLock(tx, () ->
+        {
+            Transaction cur = s.find(tx);
+            if (cur != null && cur.getStatus() == Transaction.Status.FAILED)
+            {
+                asyncBank.reverseAsync(tx, amt);
+            }
+            return null;
+        });
+    }
+
+    private PayResp settle(Transaction t, boolean ok)
+    {
+        String tx = t.getId();
+        return s.withTxLock(tx, () ->
+        {
+            // only move the record out of PENDING; if something else got there first, leave it
+            Transaction cur = s.find(tx);
+            Transaction.Status st = cur != null ? cur.getStatus() : t.getStatus();
+            if (st != Transaction.Status.PENDING)
+            {
+                return new PayResp(tx, st == Transaction.Status.SUCCESS, "upi already " + st);
+            }
+            if (ok)
+            {
+                t.setStatus(Transaction.Status.SUCCESS);
+                s.save(t);
+                return new PayResp(tx, true, "upi success");
+            }
+            else
+            {
+                t.setStatus(Transaction.Status.FAILED);
+                s.save(t);
+                return new PayResp(tx, false, "upi failed");
+            }
+        });
+    }
+
+    @Override
+    public PayResp refund(String txId, Money amt)
+    {
+        return s.withTxLock(txId, () ->
+        {
+            Transaction t = s.find(txId);
+            if (t == null)
+            {
+                return new PayResp("", false, "tx not found");
+            }
+            if (!t.getMethod().equals("UPI"))
+            {
+                return new PayResp(txId, false, "method mismatch");
+            }
+            if (t.getStatus() == Transaction.Status.REFUNDED)
+            {
+                return new PayResp(txId, false, "already refunded");
+            }
+            if (t.getStatus() != Transaction.Status.SUCCESS)
+            {
+                return new PayResp(txId, false, "not refundable: " + t.getStatus());
+            }
+            boolean ok = reverse(txId, amt);
+            if (ok)
+            {
+                Transaction r = new Transaction(g.next("R-"), "UPI-REFUND", t.getPayer(), amt, Transaction.Status.REFUNDED);
+                s.save(r);
+                t.setStatus(Transaction.Status.REFUNDED);
+                s.save(t);
+                return new PayResp(r.getId(), true, "refund success");
+            }
+            else
+            {
+                return new PayResp("", false, "refund failed");
+            }
+        });
+    }
+
+    private boolean sendToBank(String txId, Money amt)
+    {
+        return bank.send(txId, amt);
+    }
+
+    private boolean reverse(String txId, Money amt)
+    {
+        return bank.reverse(txId, amt);
+    }
+}
+
+class PaymentExecutors
+{
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+        Thread th = new Thread(r, "payment-timer");
+        th.setDaemon(true);
+        return th;
+    });
+
+    private static volatile ExecutorService shared;
+
+    public static ScheduledExecutorService timer()
+    {
+        return TIMER;
+    }
+
+    public static ExecutorService shared()
+    {
+        if (shared == null)
+        {
+            synchronized (PaymentExecutors.class)
+            {
+                if (shared == null)
+                {
+                    shared = perTask();
+                }
+            }
+        }
+        return shared;
+    }
+
+    public static ExecutorService perTask()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return Executors.newCachedThreadPool(r ->
+            {
+                Thread th = new Thread(r, "payment-worker");
+                th.setDaemon(true);
+                return th;
+            });
+        }
+    }
+}
+
+// Caps how many calls a payment method may have in flight so a slow rail cannot take
+// every worker with it. Callers that cannot get a permit within maxWaitMillis are turned away.
+class Bulkhead
+{
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final long maxWaitMillis;
+    private final LongAdder rejected = new LongAdder();
+
+    public Bulkhead(int maxConcurrent, long maxWaitMillis)
+    {
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public boolean tryAcquire()
+    {
+        boolean ok;
+        try
+        {
+            ok = maxWaitMillis <= 0 ? permits.tryAcquire() : permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            ok = false;
+        }
+        if (!ok)
+        {
+            rejected.increment();
+        }
+        return ok;
+    }
+
+    public void release()
+    {
+        permits.release();
+    }
+
+    public int inFlight()
+    {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    public long getRejected()
+    {
+        return rejected.sum();
+    }
+}
+
+// Count-based circuit breaker. Trips when the failure or slow-call share of the last
+// `window` calls crosses its threshold, rejects everything for openMillis, then lets
+// `probes` calls through; all of them must succeed quickly to close it again.
+class CircuitBreaker
+{
+    enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int window;
+    private final int minCalls;
+    private final double failureRate;
+    private final double slowRate;
+    private final long slowNanos;
+    private final long openNanos;
+    private final int probes;
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int size;
+    private int failures;
+    private int slows;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesIssued;
+    private int probesOk;
+    private long rejected;
+    private long trips;
+
+    public CircuitBreaker()
+    {
+        this(50, 20, 0.5, 0.5, 2000, 10_000, 3);
+    }
+
+    public CircuitBreaker(int window, int minCalls, double failureRate, double slowRate,
+                          long slowCallMillis, long openMillis, int probes)
+    {
+        this.window = window;
+        this.minCalls = minCalls;
+        this.failureRate = failureRate;
+        this.slowRate = slowRate;
+        this.slowNanos = slowCallMillis * 1_000_000L;
+        this.openNanos = openMillis * 1_000_000L;
+        this.probes = probes;
+        this.failed = new boolean[window];
+        this.slow = new boolean[window];
+    }
+
+    public synchronized boolean tryAcquire()
+    {
+        if (state == State.OPEN)
+        {
+            if (System.nanoTime() - openedAt < openNanos)
+            {
+                rejected++;
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probesIssued = 0;
+            probesOk = 0;
+        }
+        if (state == State.HALF_OPEN)
+        {
+            if (probesIssued >= probes)
+            {
+                rejected++;
+                return false;
+            }
+            probesIssued++;
+        }
+        return true;
+    }
+
+    public synchronized void onResult(boolean ok, long nanos)
+    {
+        boolean isSlow = nanos >= slowNanos;
+        if (state == State.HALF_OPEN)
+        {
+            if (!ok || isSlow)
+            {
+                trip();
+            }
+            else if (++probesOk >= probes)
+            {
+                reset();
+            }
+            return;
+        }
+        if (state == State.OPEN)
+        {
+            // late result from a call admitted before the trip
+            return;
+        }
+        if (size == window)
+        {
+            failures -= failed[next] ? 1 : 0;
+            slows -= slow[next] ? 1 : 0;
+        }
+        else
+        {
+            size++;
+        }
+        failed[next] = !ok;
+        slow[next] = isSlow;
+        failures += ok ? 0 : 1;
+        slows += isSlow ? 1 : 0;
+        next = (next + 1) % window;
+        if (size >= minCalls && (failures >= failureRate * size || slows >= slowRate * size))
+        {
+            trip();
+        }
+    }
+
+    private void trip()
+    {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        trips++;
+    }
+
+    private void reset()
+    {
+        state = State.CLOSED;
+        next = 0;
+        size = 0;
+        failures = 0;
+        slows = 0;
+        Arrays.fill(failed, false);
+        Arrays.fill(slow, false);
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    public synchronized long getRejected()
+    {
+        return rejected;
+    }
+
+    public synchronized long getTrips()
+    {
+        return trips;
+    }
+}
+
+class PaymentService
+{
+    private final Map<String, IPayment> payments = new ConcurrentHashMap<>();
+    private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final IValidator<PayReq> v;
+    private final ITransactionStore s;
+    private final ExecutorService async;
+
+    public PaymentService(IValidator<PayReq> v, ITransactionStore s)
+    {
+        this(v, s, PaymentExecutors.shared());
+    }
+
+    public PaymentService(IValidator<PayReq> v, ITransactionStore s, ExecutorService async)
+    {
+        this.v = v;
+        this.s = s;
+        this.async = async;
+    }
+
+    public void register(String key, IPayment p)
+    {
+        payments.put(key, p);
+    }
+
+    public void isolate(String key, Bulkhead bulkhead, CircuitBreaker breaker)
+    {
+        if (bulkhead != null)
+        {
+            bulkheads.put(key, bulkhead);
+        }
+        if (breaker != null)
+        {
+            breakers.put(key, breaker);
+        }
+    }
+
+    public Bulkhead getBulkhead(String key)
+    {
+        return bulkheads.get(key);
+    }
+
+    public CircuitBreaker getBreaker(String key)
+    {
+        return breakers.get(key);
+    }
+
+    // null when admitted; otherwise the rejection message. Holds a bulkhead permit on admission.
+    private String admit(String method)
+    {
+        Bulkhead b = bulkheads.get(method);
+        if (b != null && !b.tryAcquire())
+        {
+            return method + " busy";
+        }
+        CircuitBreaker cb = breakers.get(method);
+        if (cb != null && !cb.tryAcquire())
+        {
+            if (b != null)
+            {
+                b.release();
+            }
+            return method + " circuit open";
+        }
+        return null;
+    }
+
+    private void done(String method, boolean ok, long startNanos)
+    {
+        record(method, ok, System.nanoTime() - startNanos);
+        release(method);
+    }
+
+    private void record(String method, boolean ok, long nanos)
+    {
+        CircuitBreaker cb = breakers.get(method);
+        if (cb != null)
+        {
+            cb.onResult(ok, nanos);
+        }
+    }
+
+    private void release(String method)
+    {
+        Bulkhead b = bulkheads.get(method);
+        if (b != null)
+        {
+            b.release();
+        }
+    }
+
+    public PayResp execute(String method, PayReq req)
+    {
+        try
+        {
+            v.validate(req);
+        }
+        catch (ValidationException e)
+        {
+            return new PayResp("", false, e.getMessage());
+        }
+        IPayment p = payments.get(method);
+        if (p == null)
+        {
+            return new PayResp("", false, "method unsupported");
+        }
+        String rejected = admit(method);
+        if (rejected != null)
+        {
+            return new PayResp("", false, rejected, true);
+        }
+        long start = System.nanoTime();
+        boolean ok = false;
+        try
+        {
+            PayResp resp = p.pay(req);
+            ok = resp.isOk();
+            return resp;
+        }
+        catch (UncheckedIOException e)
+        {
+            return new PayResp("", false, "payment not recorded: " + e.getMessage());
+        }
+        finally
+        {
+            done(method, ok, start);
+        }
+    }
+
+    public CompletableFuture<PayResp> executeAsync(String method, PayReq req)
+    {
+        IPayment p = payments.get(method);
+        if (p instanceof IAsyncPayment ap)
+        {
+            try
+            {
+                v.validate(req);
+            }
+            catch (ValidationException e)
+            {
+                return CompletableFuture.completedFuture(new PayResp("", false, e.getMessage()));
+            }
+            String rejected = admit(method);
+            if (rejected != null)
+            {
+                return CompletableFuture.completedFuture(new PayResp("", false, rejected, true));
+            }
+            long start = System.nanoTime();
+            CompletableFuture<PayResp> f;
+            try
+            {
+                f = ap.payAsync(req);
+            }
+            catch (RuntimeException e)
+            {
+                done(method, false, start);
+                throw e;
+            }
+            return f.whenComplete((resp, e) -> done(method, e == null && resp.isOk(), start));
+        }
+        return CompletableFuture.supplyAsync(() -> execute(method, req), async);
+    }
+
+    public boolean supportsBatch(String method)
+    {
+        return payments.get(method) instanceof IBatchPayment b && b.batches();
+    }
+
+    public List<PayResp> executeBatch(String method, List<PayReq> reqs)
+    {
+        PayResp[] out = new PayResp[reqs.size()];
+        List<PayReq> valid = new ArrayList<>(reqs.size());
+        List<Integer> slots = new ArrayList<>(reqs.size());
+        for (int i = 0; i < reqs.size(); i++)
+        {
+            try
+            {
+                v.validate(reqs.get(i));
+                valid.add(reqs.get(i));
+                slots.add(i);
+            }
+            catch (ValidationException e)
+            {
+                out[i] = new PayResp("", false, e.getMessage());
+            }
+        }
+        IPayment p = payments.get(method);
+        if (p == null)
+        {
+            for (int slot : slots)
+            {
+                out[slot] = new PayResp("", false, "method unsupported");
+            }
+            return Arrays.asList(out);
+        }
+        if (slots.isEmpty())
+        {
+            return Arrays.asList(out);
+        }
+        // the whole batch takes one bulkhead permit; each item's outcome is reported to the breaker
+        String rejected = admit(method);
+        if (rejected != null)
+        {
+            for (int slot : slots)
+            {
+                out[slot] = new PayResp("", false, rejected, true);
+            }
+            return Arrays.asList(out);
+        }
+        try
+        {
+            if (p instanceof IBatchPayment batch && batch.batches())
+            {
+                long start = System.nanoTime();
+                List<PayResp> resps;
+                try
+                {
+                    resps = batch.payBatch(valid);
+                }
+                catch (RuntimeException e)
+                {
+                    record(method, false, System.nanoTime() - start);
+                    throw e;
+                }
+                // every item waited for the whole batch
+                long nanos = System.nanoTime() - start;
+                for (int i = 0; i < slots.size(); i++)
+                {
+                    out[slots.get(i)] = resps.get(i);
+                    record(method, resps.get(i).isOk(), nanos);
+                }
+            }
+            else
+            {
+                for (int i = 0; i < slots.size(); i++)
+                {
+                    long start = System.nanoTime();
+                    boolean ok = false;
+                    try
+                    {
+                        out[slots.get(i)] = p.pay(valid.get(i));
+                        ok = out[slots.get(i)].isOk();
+                    }
+                    finally
+                    {
+                        record(method, ok, System.nanoTime() - start);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            release(method);
+        }
+        return Arrays.asList(out);
+    }
+
+    public PayResp refund(String method, String txId, Money amt)
+    {
+        IPayment p = payments.get(method);
+        if (p instanceof IRefund ref)
+        {
+            return ref.refund(txId, amt);
+        }
+        return new PayResp("", false, "refund not supported");
+    }
+
+    public Transaction find(String txId)
+    {
+        return s.find(txId);
+    }
+
+    public List<Transaction> findByPayer(String payerId)
+    {
+        return s.findByPayer(payerId);
+    }
+}
+
+class ValidationException extends Exception
+{
+    public ValidationException(String message)
+    {
+        super(message);
+    }
+}
+
+interface ISettlementBank
+{
+    // Takes a settlement file and returns the bank's response file, or null if the
+    // response will arrive later and be passed to SettlementBatcher.ingest.
+    Path settle(Path settlementFile) throws IOException;
+}
+
+// Fixed-width settlement file layout, one ASCII record per line:
+//   H batch(6) created-millis(13)
+//   D txId(32) payerId(12) payerName(30) amount(15) currency(3)
+//   T count(8) total(18)
+// and the response layout:
+//   R txId(32) S|F reason(4)
+class SettlementFormat
+{
+    static final int ID = 32;
+    static final int RECORD = 1 + ID + 12 + 30 + 15 + 3;
+    static final int RESPONSE = 1 + ID + 1 + 4;
+
+    static void put(ByteBuffer buf, String v, int width)
+    {
+        int n = Math.min(v.length(), width);
+        for (int i = 0; i < n; i++)
+        {
+            char c = v.charAt(i);
+            buf.put(c < 0x20 || c > 0x7e ? (byte) '?' : (byte) c);
+        }
+        for (int i = n; i < width; i++)
+        {
+            buf.put((byte) ' ');
+        }
+    }
+
+    static void putNum(ByteBuffer buf, long v, int width)
+    {
+        String digits = Long.toString(v);
+        if (digits.length() > width || v < 0)
+        {
+            throw new IllegalArgumentException("value does not fit settlement field: " + v);
+        }
+        for (int i = digits.length(); i < width; i++)
+        {
+            buf.put((byte) '0');
+        }
+        put(buf, digits, digits.length());
+    }
+
+    static void end(ByteBuffer buf, int start, int width)
+    {
+        while (buf.position() - start < width)
+        {
+            buf.put((byte) ' ');
+        }
+        buf.put((byte) '\n');
+    }
+}
+
+// Collects pending transfers and writes them out as one settlement file once the batch
+// reaches maxBatch or the oldest entry has waited maxWaitMillis. Each submitted
+// transaction gets a future that completes when the bank's response is ingested. Batches
+// the bank did not answer directly are polled for a <file>.resp until it shows up.
+class SettlementBatcher implements Closeable
+{
+    private static final class Pending
+    {
+        private final Transaction t;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Pending(Transaction t)
+        {
+            this.t = t;
+        }
+    }
+
+    private final Path dir;
+    private final int maxBatch;
+    private final long maxWaitMillis;
+    private final long responseMillis;
+    private final ISettlementBank bank;
+    private final Object lock = new Object();
+    private final Map<String, Pending> awaiting = new ConcurrentHashMap<>();
+    private final Map<Long, Path> unanswered = new ConcurrentHashMap<>();
+    private final AtomicLong batchSeq = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+    private List<Pending> open = new ArrayList<>();
+    private ScheduledFuture<?> timer;
+    private ScheduledFuture<?> poller;
+
+    public SettlementBatcher(Path dir, int maxBatch, long maxWaitMillis, ISettlementBank bank) throws IOException
+    {
+        this(dir, maxBatch, maxWaitMillis, 5000, bank);
+    }
+
+    // responseMillis is how long a caller should wait for the bank's answer once its batch is written
+    public SettlementBatcher(Path dir, int maxBatch, long maxWaitMillis, long responseMillis, ISettlementBank bank)
+            throws IOException
+    {
+        this.dir = Files.createDirectories(dir);
+        this.maxBatch = maxBatch;
+        this.maxWaitMillis = maxWaitMillis;
+        this.responseMillis = responseMillis;
+        this.bank = bank;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "settle-*.txt"))
+        {
+            for (Path f : files)
+            {
+                String n = f.getFileName().toString();
+                batchSeq.set(Math.max(batchSeq.get(), Long.parseLong(n.substring(7, n.length() - 4))));
+            }
+        }
+    }
+
+    public CompletableFuture<Boolean> submit(Transaction t)
+    {
+        Pending p = new Pending(t);
+        List<Pending> full = null;
+        synchronized (lock)
+        {
+            open.add(p);
+            if (open.size() >= maxBatch)
+            {
+                full = take();
+            }
+            else if (timer == null)
+            {
+                timer = PaymentExecutors.timer().schedule(
+                        () -> PaymentExecutors.shared().execute(this::flush), maxWaitMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null)
+        {
+            write(full);
+        }
+        return p.result;
+    }
+
+    public void flush()
+    {
+        List<Pending> batch;
+        synchronized (lock)
+        {
+            batch = take();
+        }
+        if (!batch.isEmpty())
+        {
+            write(batch);
+        }
+    }
+
+    private List<Pending> take()
+    {
+        if (timer != null)
+        {
+            timer.cancel(false);
+            timer = null;
+        }
+        List<Pending> batch = open;
+        open = new ArrayList<>();
+        return batch;
+    }
+
+    private void write(List<Pending> batch)
+    {
+        long id = batchSeq.incrementAndGet();
+        Path file = dir.resolve(String.format("settle-%06d.txt", id));
+        for (Pending p : batch)
+        {
+            awaiting.put(p.t.getId(), p);
+        }
+        try
+        {
+            writeFile(id, batch, file);
+            records.addAndGet(batch.size());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            System.out.println("Settlement batch " + id + " not written: " + e.getMessage());
+            for (Pending p : batch)
+            {
+                awaiting.remove(p.t.getId());
+                p.result.complete(false);
+            }
+            return;
+        }
+        if (bank == null)
+        {
+            return;
+        }
+        try
+        {
+            Path response = bank.settle(file);
+            if (response != null)
+            {
+                ingest(response);
+                return;
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            System.out.println("Settlement batch " + id + " awaiting response: " + e.getMessage());
+        }
+        // transfers stay PENDING until <file>.resp appears
+        unanswered.put(id, file);
+        synchronized (lock)
+        {
+            if (poller == null)
+            {
+                poller = PaymentExecutors.timer().scheduleWithFixedDelay(
+                        () -> PaymentExecutors.shared().execute(this::poll), maxWaitMillis, maxWaitMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void poll()
+    {
+        for (Map.Entry<Long, Path> e : unanswered.entrySet())
+        {
+            Path response = e.getValue().resolveSibling(e.getValue().getFileName() + ".resp");
+            if (!Files.exists(response))
+            {
+                continue;
+            }
+            try
+            {
+                ingest(response);
+                unanswered.remove(e.getKey());
+            }
+            catch (IOException ex)
+            {
+                System.out.println("Settlement response " + response + " not read: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void writeFile(long id, List<Pending> batch, Path file) throws IOException
+    {
+        int line = SettlementFormat.RECORD + 1;
+        ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(line, 64 * 1024) / line * line);
+        long total = 0;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+        {
+            int start = buf.position();
+            buf.put((byte) 'H');
+            SettlementFormat.putNum(buf, id, 6);
+            SettlementFormat.putNum(buf, System.currentTimeMillis(), 13);
+            SettlementFormat.end(buf, start, SettlementFormat.RECORD);
+            for (Pending p : batch)
+            {
+                if (buf.remaining() < line)
+                {
+                    drain(ch, buf);
+                }
+                Transaction t = p.t;
+                if (t.getId().length() > SettlementFormat.ID)
+                {
+                    throw new IllegalArgumentException("tx id too long for settlement: " + t.getId());
+                }
+                start = buf.position();
+                buf.put((byte) 'D');
+                SettlementFormat.put(buf, t.getId(), SettlementFormat.ID);
+                SettlementFormat.put(buf, t.getPayer().getId(), 12);
+                SettlementFormat.put(buf, t.getPayer().getName(), 30);
+                SettlementFormat.putNum(buf, t.getAmt().getAmount(), 15);
+                SettlementFormat.put(buf, t.getAmt().getCurrency(), 3);
+                SettlementFormat.end(buf, start, SettlementFormat.RECORD);
+                total += t.getAmt().getAmount();
+            }
+            if (buf.remaining() < line)
+            {
+                drain(ch, buf);
+            }
+            start = buf.position();
+            buf.put((byte) 'T');
+            SettlementFormat.putNum(buf, batch.size(), 8);
+            SettlementFormat.putNum(buf, total, 18);
+            SettlementFormat.end(buf, start, SettlementFormat.RECORD);
+            drain(ch, buf);
+            ch.force(false);
+        }
+    }
+
+    private static void drain(FileChannel ch, ByteBuffer buf) throws IOException
+    {
+        buf.flip();
+        while (buf.hasRemaining())
+        {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    // Applies a bank response file. Lines for transfers already settled are ignored,
+    // so the same file can be ingested again safely. Returns the number applied.
+    public int ingest(Path responseFile) throws IOException
+    {
+        int applied = 0;
+        try (BufferedReader in = Files.newBufferedReader(responseFile, StandardCharsets.US_ASCII))
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.length() < SettlementFormat.RESPONSE - 4 || line.charAt(0) != 'R')
+                {
+                    continue;
+                }
+                String txId = line.substring(1, 1 + SettlementFormat.ID).trim();
+                Pending p = awaiting.remove(txId);
+                if (p == null)
+                {
+                    unmatched.incrementAndGet();
+                    continue;
+                }
+                p.result.complete(line.charAt(1 + SettlementFormat.ID) == 'S');
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    public long getBatches()
+    {
+        return batchSeq.get();
+    }
+
+    public long getRecords()
+    {
+        return records.get();
+    }
+
+    public int getAwaiting()
+    {
+        return awaiting.size();
+    }
+
+    public long getUnmatched()
+    {
+        return unmatched.get();
+    }
+
+    public long getMaxWaitMillis()
+    {
+        return maxWaitMillis;
+    }
+
+    public long getResponseMillis()
+    {
+        return responseMillis;
+    }
+
+    // Writes out the open batch and picks up any responses already on disk; transfers
+    // still unanswered stay PENDING in the store.
+    @Override
+    public void close()
+    {
+        flush();
+        synchronized (lock)
+        {
+            if (poller != null)
+            {
+                poller.cancel(false);
+                poller = null;
+            }
+        }
+        poll();
+    }
+}
+
+// Stands in for the bank: reads a settlement file and writes <file>.resp, rejecting
+// each transfer with probability errorRate.
+class SimulatedSettlementBank implements ISettlementBank
+{
+    private final double errorRate;
+
+    public SimulatedSettlementBank(double errorRate)
+    {
+        this.errorRate = errorRate;
+    }
+
+    @Override
+    public Path settle(Path settlementFile) throws IOException
+    {
+        Path response = settlementFile.resolveSibling(settlementFile.getFileName() + ".resp");
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        try (BufferedReader in = Files.newBufferedReader(settlementFile, StandardCharsets.US_ASCII);
+             BufferedWriter out = Files.newBufferedWriter(response, StandardCharsets.US_ASCII))
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.isEmpty() || line.charAt(0) != 'D')
+                {
+                    continue;
+                }
+                boolean ok = rnd.nextDouble() >= errorRate;
+                out.write('R');
+                out.write(line, 1, SettlementFormat.ID);
+                out.write(ok ? "S0000" : "FR001");
+                out.newLine();
+            }
+        }
+        return response;
+    }
+}
+
+class BankTransfer implements IPayment, IRefund, IAsyncPayment, IBatchPayment, Closeable
+{
+    private final ITransactionStore store;
+    private final IdGen idg;
+    private final IBankConnector bank;
+    private final IAsyncBankConnector asyncBank;
+    private final SettlementBatcher settlement;
+    private final Set<CompletableFuture<PayResp>> settling = ConcurrentHashMap.newKeySet();
+
+    public BankTransfer(ITransactionStore s, IdGen idg)
+    {
+        this(s, idg, IBankConnector.ALWAYS_OK);
+    }
+
+    public BankTransfer(ITransactionStore s, IdGen idg, IBankConnector bank)
+    {
+        this(s, idg, bank, null);
+    }
+
+    // With a settlement batcher, transfers are settled through batch files instead of one
+    // bank call each; pay() then waits for its batch, which can take up to the batch window
+    // plus the bank's response time, and reports the transfer pending after that.
+    public BankTransfer(ITransactionStore s, IdGen idg, IBankConnector bank, SettlementBatcher settlement)
+    {
+        this.store = s;
+        this.idg = idg;
+        this.bank = bank;
+        this.asyncBank = IAsyncBankConnector.of(bank, PaymentExecutors.shared());
+        this.settlement = settlement;
+    }
+
+    @Override
+    public PayResp pay(PayReq req)
+    {
+        String tx = idg.next("BT-");
+        Transaction t = new Transaction(tx, "BANK_TRANSFER", req.getPayer(), req.getAmt(), Transaction.Status.PENDING);
+        store.save(t);
+        if (settlement != null)
+        {
+            return settleInBatch(t).join();
+        }
+        if (req.getDeadlineMillis() > 0)
+        {
+            return payAsync(t, req).join();
+        }
+        boolean ok = simulateTransfer(tx, req.getAmt());
+        return settle(t, ok);
+    }
+
+    @Override
+    public CompletableFuture<PayResp> payAsync(PayReq req)
+    {
+        String tx = idg.next("BT-");
+        Transaction t = new Transaction(tx, "BANK_TRANSFER", req.getPayer(), req.getAmt(), Transaction.Status.PENDING);
+        store.save(t);
+        if (settlement != null)
+        {
+            return settleInBatch(t);
+        }
+        return payAsync(t, req);
+    }
+
+    @Override
+    public boolean batches()
+    {
+        return settlement != null;
+    }
+
+    @Override
+    public List<PayResp> payBatch(List<PayReq> reqs)
+    {
+        if (settlement == null)
+        {
+            List<PayResp> out = new ArrayList<>(reqs.size());
+            for (PayReq r : reqs)
+            {
+                out.add(pay(r));
+            }
+            return out;
+        }
+        List<CompletableFuture<PayResp>> pending = new ArrayList<>(reqs.size());
+        for (PayReq r : reqs)
+        {
+            Transaction t = new Transaction(idg.next("BT-"), "BANK_TRANSFER", r.getPayer(), r.getAmt(),
+                    Transaction.Status.PENDING);
+            store.save(t);
+            pending.add(settleInBatch(t));
+        }
+        settlement.flush();
+        List<PayResp> out = new ArrayList<>(reqs.size());
+        for (CompletableFuture<PayResp> f : pending)
+        {
+            out.add(f.join());
+        }
+        return out;
+    }
+
+    private CompletableFuture<PayResp> settleInBatch(Transaction t)
+    {
+        // keeps running past the caller's wait so a late response still settles the record
+        CompletableFuture<PayResp> settled = settlement.submit(t)
+                .thenApplyAsync(ok -> settle(t, ok), PaymentExecutors.shared());
+        settling.add(settled);
+        settled.whenComplete((r, e) -> settling.remove(settled));
+        return settled.copy().completeOnTimeout(
+                new PayResp(t.getId(), false, "bank transfer awaiting settlement", false, true),
+                settlement.getMaxWaitMillis() + settlement.getResponseMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private CompletableFuture<PayResp> payAsync(Transaction t, PayReq req)
+    {
+        String tx = t.getId();
+        CompletableFuture<Boolean> call = asyncBank.transferAsync(tx, req.getAmt());
+        CompletableFuture<PayResp> resp = asyncBank.withDeadline(call, req.getDeadlineMillis())
+                .exceptionally(e -> false)
+                .thenApplyAsync(ok -> settle(t, ok), PaymentExecutors.shared());
+        if (req.getDeadlineMillis() > 0)
+        {
+            call.thenAcceptBoth(resp, (ok, settled) ->
+            {
+                if (ok)
+                {
+                    reverseIfFailed(tx, req.getAmt());
+                }
+            });
+        }
+        return resp;
+    }
+
+    // The bank accepted a transfer we already gave up on; undo it only if our record says FAILED.
+    private void reverseIfFailed(String tx, Money amt)
+    {
+        store.withTxLock(tx, () ->
+        {
+            Transaction cur = store.find(tx);
+            if (cur != null && cur.getStatus() == Transaction.Status.FAILED)
+            {
+                asyncBank.reverseAsync(tx, amt);
+            }
+            return null;
+        });
+    }
+
+    private PayResp settle(Transaction t, boolean ok)
+    {
+        String tx = t.getId();
+        return store.withTxLock(tx, () ->
+        {
+            // a settlement response can arrive long after submission; only move the
+            // record out of PENDING and never undo whatever happened to it meanwhile
+            Transaction cur = store.find(tx);
+            Transaction.Status st = cur != null ? cur.getStatus() : t.getStatus();
+            if (st != Transaction.Status.PENDING)
+            {
+                return new PayResp(tx, st == Transaction.Status.SUCCESS, "bank transfer already " + st);
+            }
+            if (ok)
+            {
+                t.setStatus(Transaction.Status.SUCCESS);
+                store.save(t);
+                return new PayResp(tx, true, "bank transfer success");
+            }
+            else
+            {
+                t.setStatus(Transaction.Status.FAILED);
+                store.save(t);
+                return new PayResp(tx, false, "bank transfer failed");
+            }
+        });
+    }
+
+    @Override
+    public PayResp refund(String txId, Money amt)
+    {
+        return store.withTxLock(txId, () ->
+        {
+            Transaction t = store.find(txId);
+            if (t == null)
+            {
+                return new PayResp("", false, "tx not found");
+            }
+            if (!t.getMethod().equals("BANK_TRANSFER"))
+            {
+                return new PayResp(txId, false, "method mismatch");
+            }
+            if (t.getStatus() == Transaction.Status.REFUNDED)
+            {
+                return new PayResp(txId, false, "already refunded");
+            }
+            if (t.getStatus() != Transaction.Status.SUCCESS)
+            {
+                return new PayResp(txId, false, "not refundable: " + t.getStatus());
+            }
+            Transaction r = new Transaction(idg.next("R-"), "BT-REFUND", t.getPayer(), amt,
+                    Transaction.Status.REFUNDED);
+            store.save(r);
+            t.setStatus(Transaction.Status.REFUNDED);
+            store.save(t);
+            return new PayResp(r.getId(), true, "refund success");
+        });
+    }
+
+    private boolean simulateTransfer(String txId, Money amt)
+    {
+        return bank.transfer(txId, amt);
+    }
+
+    // Sends the open settlement batch and gives outstanding responses one response window
+    // to be written back before the store goes away.
+    @Override
+    public void close()
+    {
+        if (settlement == null)
+        {
+            return;
+        }
+        settlement.close();
+        try
+        {
+            CompletableFuture.allOf(settling.toArray(new CompletableFuture<?>[0]))
+                    .get(settlement.getResponseMillis(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            System.out.println("Bank transfers left pending: " + settling.size());
+        }
+    }
+}
+
+interface IRecurringPayment
+{
+    default void schedule(PayReq req, int intervalDays)
+    {
+        schedule("card", req, intervalDays);
+    }
+
+    void schedule(String method, PayReq req, int intervalDays);
+
+    void processRecurring();
+}
+
+class RecurringTransaction extends Transaction
+{
+    private final int intervalDays;
+    private final String payMethod;
+    private Date nextRun;
+
+    public RecurringTransaction(String id, String method, Payer p, Money amt, Status st, int interval)
+    {
+        this(id, method, p, amt, st, interval, "card");
+    }
+
+    public RecurringTransaction(String id, String method, Payer p, Money amt, Status st, int interval, String payMethod)
+    {
+        super(id, method, p, amt, st);
+        this.intervalDays = interval;
+        this.payMethod = payMethod;
+        this.nextRun = new Date(System.currentTimeMillis() + interval * 24 * 60 * 60 * 1000L);
+    }
+
+    public String getPayMethod()
+    {
+        return payMethod;
+    }
+
+    public int getIntervalDays()
+    {
+        return intervalDays;
+    }
+
+    public Date getNextRun()
+    {
+        return nextRun;
+    }
+
+    public void updateNextRun()
+    {
+        this.nextRun = new Date(nextRun.getTime() + intervalDays * 24 * 60 * 60 * 1000L);
+    }
+
+    public int dueCycles(long now)
+    {
+        long next = nextRun.getTime();
+        if (next > now)
+        {
+            return 0;
+        }
+        long interval = intervalDays * 24 * 60 * 60 * 1000L;
+        if (interval <= 0)
+        {
+            return 1;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (now - next) / interval + 1);
+    }
+
+    public void advance(int cycles)
+    {
+        this.nextRun = new Date(nextRun.getTime() + cycles * (intervalDays * 24 * 60 * 60 * 1000L));
+    }
+
+    public void setNextRun(Date nextRun)
+    {
+        this.nextRun = nextRun;
+    }
+}
+
+class RecurringManager
+{
+    public void saveRecurring(List<RecurringTransaction> recurring, String filename)
+    {
+        try
+        {
+            writeRecords(recurring, filename);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Error saving recurring: " + e.getMessage());
+        }
+    }
+
+    private static void writeRecords(List<RecurringTransaction> recurring, String filename) throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(filename);
+             BufferedWriter w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)))
+        {
+            for (RecurringTransaction rt : recurring)
+            {
+                w.write(toRecord(rt));
+                w.newLine();
+            }
+            w.flush();
+            out.getFD().sync();
+        }
+    }
+
+    // The old checkpoint and its log are only replaced once the new checkpoint is fully
+    // on disk; any failure before that leaves both untouched.
+    public void checkpoint(List<RecurringTransaction> recurring, String filename)
+    {
+        Path tmp = Paths.get(filename + ".tmp");
+        try
+        {
+            writeRecords(recurring, tmp.toString());
+            Files.move(tmp, Paths.get(filename), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Error checkpointing recurring: " + e.getMessage());
+            try
+            {
+                Files.deleteIfExists(tmp);
+            }
+            catch (IOException ignored)
+            {
+            }
+            return;
+        }
+        try (FileChannel log = FileChannel.open(Paths.get(filename + ".log"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE))
+        {
+            log.truncate(0);
+            log.force(true);
+        }
+        catch (IOException e)
+        {
+            // replaying the old deltas over the new checkpoint is harmless
+            System.out.println("Error clearing recurring log: " + e.getMessage());
+        }
+    }
+
+    public void appendDeltas(List<String> deltas, String filename)
+    {
+        if (deltas.isEmpty())
+        {
+            return;
+        }
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(filename + ".log", true))))
+        {
+            for (String d : deltas)
+            {
+                pw.println(d);
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Error logging recurring changes: " + e.getMessage());
+        }
+    }
+
+    public static String created(RecurringTransaction rt)
+    {
+        return "C," + toRecord(rt);
+    }
+
+    public static String advanced(RecurringTransaction rt)
+    {
+        return "A," + rt.getId() + "," + rt.getNextRun().getTime();
+    }
+
+    public static String cancelled(RecurringTransaction rt)
+    {
+        return "X," + rt.getId();
+    }
+
+    private static String toRecord(RecurringTransaction rt)
+    {
+        return rt.getId() + "," + rt.getPayer().getId() + "," + rt.getPayer().getName() + "," +
+                rt.getAmt().getAmount() + "," + rt.getAmt().getCurrency() + "," + rt.getIntervalDays() + "," + rt.getNextRun().getTime()
+                + "," + rt.getPayMethod();
+    }
+
+    // Fixed fields are read from both ends so a payer name containing commas survives.
+    // Legacy records end in the next-run time; newer ones append the payment method.
+    private static RecurringTransaction fromRecord(String[] parts, int off)
+    {
+        int n = parts.length;
+        boolean legacy = isLong(parts[n - 1]);
+        int end = legacy ? n : n - 1;
+        if (end - off < 7)
+        {
+            throw new IllegalArgumentException("Invalid recurring record");
+        }
+        String payMethod = legacy ? "card" : parts[n - 1];
+        String id = parts[off];
+        String payerId = parts[off + 1];
+        String payerName = String.join(",", Arrays.copyOfRange(parts, off + 2, end - 4));
+        long amount = Long.parseLong(parts[end - 4]);
+        String currency = parts[end - 3];
+        int interval = Integer.parseInt(parts[end - 2]);
+        long nextRunTime = Long.parseLong(parts[end - 1]);
+        Payer payer = new Payer(payerId, payerName);
+        Money amt = new Money(amount, currency);
+        RecurringTransaction rt = new RecurringTransaction(id, "RECURRING", payer, amt, Transaction.Status.PENDING, interval,
+                payMethod);
+        rt.setNextRun(new Date(nextRunTime));
+        return rt;
+    }
+
+    private static boolean isLong(String s)
+    {
+        try
+        {
+            Long.parseLong(s);
+            return true;
+        }
+        catch (NumberFormatException e)
+        {
+            return false;
+        }
+    }
+
+    public List<RecurringTransaction> loadRecurring(String filename)
+    {
+        Map<String, RecurringTransaction> byId = new LinkedHashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(filename)))
+        {
+            String line;
+            while ((line = br.readLine()) != null)
+            {
+                String[] parts = line.split(",");
+                try
+                {
+                    RecurringTransaction rt = fromRecord(parts, 0);
+                    byId.put(rt.getId(), rt);
+                }
+                catch (RuntimeException e)
+                {
+                    System.out.println("Skipping bad recurring record: " + line);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(filename + ".log")))
+        {
+            String line;
+            while ((line = br.readLine()) != null)
+            {
+                String[] parts = line.split(",");
+                try
+                {
+                    switch (parts[0])
+                    {
+                        case "C" ->
+                        {
+                            RecurringTransaction rt = fromRecord(parts, 1);
+                            byId.put(rt.getId(), rt);
+                        }
+                        case "A" ->
+                        {
+                            RecurringTransaction rt = parts.length == 3 ? byId.get(parts[1]) : null;
+                            if (rt != null)
+                            {
+                                rt.setNextRun(new Date(Long.parseLong(parts[2])));
+                            }
+                        }
+                        case "X" ->
+                        {
+                            if (parts.length == 2)
+                            {
+                                byId.remove(parts[1]);
+                            }
+                        }
+                        default ->
+                        {
+                        }
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    System.out.println("Skipping bad recurring log entry: " + line);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+        }
+        return new ArrayList<>(byId.values());
+    }
+}
+
+enum CatchUpPolicy
+{
+    CHARGE_ALL, CHARGE_ONCE, SKIP
+}
+
+class RecurringRunReport
+{
+    private final int charged;
+    private final int succeeded;
+    private final int failed;
+    private final int skipped;
+    private final int deferred;
+    private final long millis;
+
+    public RecurringRunReport(int charged, int succeeded, int failed, int skipped, long millis)
+    {
+        this(charged, succeeded, failed, skipped, 0, millis);
+    }
+
+    public RecurringRunReport(int charged, int succeeded, int failed, int skipped, int deferred, long millis)
+    {
+        this.charged = charged;
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.skipped = skipped;
+        this.deferred = deferred;
+        this.millis = millis;
+    }
+
+    public int getCharged()
+    {
+        return charged;
+    }
+
+    public int getSucceeded()
+    {
+        return succeeded;
+    }
+
+    public int getFailed()
+    {
+        return failed;
+    }
+
+    public int getSkipped()
+    {
+        return skipped;
+    }
+
+    public int getDeferred()
+    {
+        return deferred;
+    }
+
+    public long getMillis()
+    {
+        return millis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "charged=" + charged + " succeeded=" + succeeded + " failed=" + failed + " skipped=" + skipped
+                + " deferred=" + deferred + " in " + millis + " ms";
+    }
+}
+
+class Scheduler implements IRecurringPayment
+{
+    private final List<RecurringTransaction> recurring = new ArrayList<>();
+    private final PriorityQueue<RecurringTransaction> due =
+            new PriorityQueue<>(Comparator.comparingLong((RecurringTransaction rt) -> rt.getNextRun().getTime()));
+    private final PaymentService svc;
+    private final IdGen idg;
+    private final RecurringManager rm;
+    private final int checkpointEvery;
+    private final int parallelism;
+    private ExecutorService workers;
+    private final Object runLock = new Object();
+    private volatile CatchUpPolicy catchUp = CatchUpPolicy.CHARGE_ALL;
+    private int deltasSinceCheckpoint;
+    private ScheduledExecutorService driver;
+
+    private static final class Charge
+    {
+        private final RecurringTransaction rt;
+        private final int cycles;
+        private final int charges;
+        private int paid;
+        private boolean ok = true;
+        private boolean deferred;
+
+        private Charge(RecurringTransaction rt, int cycles, int charges)
+        {
+            this.rt = rt;
+            this.cycles = cycles;
+            this.charges = charges;
+        }
+    }
+
+    public Scheduler(PaymentService svc, IdGen idg)
+    {
+        this(svc, idg, 1000, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Scheduler(PaymentService svc, IdGen idg, int checkpointEvery, int parallelism)
+    {
+        this.svc = svc;
+        this.idg = idg;
+        this.rm = new RecurringManager();
+        this.checkpointEvery = checkpointEvery;
+        this.parallelism = parallelism;
+        recurring.addAll(rm.loadRecurring("recurring.txt"));
+        due.addAll(recurring);
+        rm.checkpoint(recurring, "recurring.txt");
+    }
+
+    private void log(List<String> deltas)
+    {
+        rm.appendDeltas(deltas, "recurring.txt");
+        deltasSinceCheckpoint += deltas.size();
+        if (deltasSinceCheckpoint >= checkpointEvery)
+        {
+            compact();
+        }
+    }
+
+    // Created on first use and released by stop(), so a stopped scheduler holds no threads.
+    private synchronized ExecutorService workers()
+    {
+        if (workers == null)
+        {
+            workers = Executors.newFixedThreadPool(parallelism, r ->
+            {
+                Thread th = new Thread(r, "recurring-worker");
+                th.setDaemon(true);
+                return th;
+            });
+        }
+        return workers;
+    }
+
+    public void setCatchUpPolicy(CatchUpPolicy policy)
+    {
+        this.catchUp = policy;
+    }
+
+    public synchronized void compact()
+    {
+        rm.checkpoint(recurring, "recurring.txt");
+        deltasSinceCheckpoint = 0;
+    }
+
+    @Override
+    public synchronized void schedule(String method, PayReq req, int intervalDays)
+    {
+        String tx = idg.next("REC-");
+        RecurringTransaction rt = new RecurringTransaction(tx, "RECURRING", req.getPayer(), req.getAmt(),
+                Transaction.Status.PENDING, intervalDays, method);
+        recurring.add(rt);
+        due.add(rt);
+        log(List.of(RecurringManager.created(rt)));
+    }
+
+    @Override
+    public void processRecurring()
+    {
+        runDue();
+    }
+
+    public RecurringRunReport runDue()
+    {
+        synchronized (runLock)
+        {
+            long start = System.nanoTime();
+            CatchUpPolicy policy = catchUp;
+            Map<String, List<Charge>> byPayer = new LinkedHashMap<>();
+            int count = 0;
+            synchronized (this)
+            {
+                long now = System.currentTimeMillis();
+                while (!due.isEmpty() && due.peek().getNextRun().getTime() <= now)
+                {
+                    RecurringTransaction rt = due.poll();
+                    int cycles = rt.dueCycles(now);
+                    int charges = switch (policy)
+                    {
+                        case CHARGE_ALL -> cycles;
+                        case CHARGE_ONCE -> 1;
+                        case SKIP -> cycles > 1 ? 0 : 1;
+                    };
+                    byPayer.computeIfAbsent(rt.getPayer().getId(), k -> new ArrayList<>())
+                            .add(new Charge(rt, cycles, charges));
+                    count++;
+                }
+            }
+            // One lane per payer, across all of its mandates, so a payer's charges never
+            // overlap. A payer whose mandates all use one batch-capable method and owe a
+            // single cycle each joins that method's batch instead; the batch is then the
+            // payer's only lane. Catch-up cycles stay in order so they stop at the first failure.
+            Map<String, List<List<Charge>>> batches = new LinkedHashMap<>();
+            List<Future<?>> results = new ArrayList<>();
+            ExecutorService workers = workers();
+            for (List<Charge> charges : byPayer.values())
+            {
+                String method = singleMethod(charges);
+                if (method != null && svc.supportsBatch(method) && singleCycle(charges))
+                {
+                    batches.computeIfAbsent(method, k -> new ArrayList<>()).add(charges);
+                }
+                else
+                {
+                    results.add(workers.submit(() -> chargeInOrder(charges)));
+                }
+            }
+            for (Map.Entry<String, List<List<Charge>>> e : batches.entrySet())
+            {
+                results.add(workers.submit(() -> chargeBatch(e.getKey(), e.getValue())));
+            }
+            for (Future<?> f : results)
+            {
+                await(f);
+            }
+            int charged = 0;
+            int succeeded = 0;
+            int failed = 0;
+            int skipped = 0;
+            int deferred = 0;
+            List<String> deltas = new ArrayList<>(count);
+            synchronized (this)
+            {
+                for (Charge c : flatten(byPayer.values()))
+                {
+                    succeeded += c.paid;
+                    if (c.deferred)
+                    {
+                        // the method turned the charge away without trying it; keep the
+                        // mandate and retry on a later run, past whatever cycles were paid
+                        charged += c.paid;
+                        deferred++;
+                        if (c.paid > 0)
+                        {
+                            c.rt.advance(c.paid);
+                            deltas.add(RecurringManager.advanced(c.rt));
+                        }
+                        due.add(c.rt);
+                    }
+                    else if (c.ok && c.paid == c.charges)
+                    {
+                        charged += c.paid;
+                        skipped += c.cycles - c.paid;
+                        c.rt.advance(c.cycles);
+                        due.add(c.rt);
+                        deltas.add(RecurringManager.advanced(c.rt));
+                    }
+                    else
+                    {
+                        charged += c.paid + 1;
+                        failed++;
+                        if (c.paid > 0)
+                        {
+                            // record the cycles that were paid before the failure
+                            c.rt.advance(c.paid);
+                            deltas.add(RecurringManager.advanced(c.rt));
+                        }
+                        recurring.remove(c.rt);
+                        deltas.add(RecurringManager.cancelled(c.rt));
+                    }
+                }
+                log(deltas);
+            }
+            return new RecurringRunReport(charged, succeeded, failed, skipped, deferred,
+                    (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    private static boolean singleCycle(List<Charge> charges)
+    {
+        for (Charge c : charges)
+        {
+            if (c.charges > 1)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String singleMethod(List<Charge> charges)
+    {
+        String method = charges.get(0).rt.getPayMethod();
+        for (Charge c : charges)
+        {
+            if (!c.rt.getPayMethod().equals(method))
+            {
+                return null;
+            }
+        }
+        return method;
+    }
+
+    private void chargeInOrder(List<Charge> charges)
+    {
+        for (Charge c : charges)
+        {
+            while (c.ok && c.paid < c.charges)
+            {
+                PayReq pr = new PayReq(c.rt.getPayer(), c.rt.getAmt());
+                PayResp resp = svc.execute(c.rt.getPayMethod(), pr);
+                // a pending charge was submitted and will settle on its own; charging again would double it
+                c.ok = resp.isOk() || resp.isPending();
+                c.deferred = resp.isRejected();
+                if (c.ok)
+                {
+                    c.paid++;
+                }
+            }
+        }
+    }
+
+    private void chargeBatch(String method, Collection<List<Charge>> byPayer)
+    {
+        List<Charge> charges = flatten(byPayer);
+        List<PayReq> reqs = new ArrayList<>();
+        for (Charge c : charges)
+        {
+            for (int i = 0; i < c.charges; i++)
+            {
+                reqs.add(new PayReq(c.rt.getPayer(), c.rt.getAmt()));
+            }
+        }
+        List<PayResp> resps = svc.executeBatch(method, reqs);
+        int i = 0;
+        for (Charge c : charges)
+        {
+            for (int j = 0; j < c.charges; j++)
+            {
+                PayResp resp = resps.get(i++);
+                if (resp.isOk() || resp.isPending())
+                {
+                    c.paid++;
+                }
+                else
+                {
+                    // a batch is admitted or rejected as a whole
+                    c.ok = false;
+                    c.deferred = resp.isRejected();
+                }
+            }
+        }
+    }
+
+    private static List<Charge> flatten(Collection<List<Charge>> groups)
+    {
+        List<Charge> all = new ArrayList<>();
+        for (List<Charge> g : groups)
+        {
+            all.addAll(g);
+        }
+        return all;
+    }
+
+    private static void await(Future<?> f)
+    {
+        try
+        {
+            f.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            System.out.println("Error charging recurring: " + e.getCause());
+        }
+    }
+
+    public synchronized void start(long periodMillis)
+    {
+        if (driver != null)
+        {
+            return;
+        }
+        driver = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread th = new Thread(r, "recurring-driver");
+            th.setDaemon(true);
+            return th;
+        });
+        driver.scheduleAtFixedRate(() ->
+        {
+            try
+            {
+                runDue();
+            }
+            catch (RuntimeException e)
+            {
+                System.out.println("Error processing recurring: " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop()
+    {
+        synchronized (this)
+        {
+            if (driver != null)
+            {
+                driver.shutdownNow();
+                driver = null;
+            }
+        }
+        // let an in-flight run finish handing out its charges before the pool goes away
+        synchronized (runLock)
+        {
+            synchronized (this)
+            {
+                if (workers != null)
+                {
+                    workers.shutdown();
+                    workers = null;
+                }
+            }
+        }
+    }
+}
+
+interface TxListener
+{
+    void onSave(Transaction t, Transaction.Status previous);
+}
+
+class ListeningTxStore implements ITransactionStore
+{
+    private final ITransactionStore delegate;
+    private final Map<String, Transaction.Status> last = new ConcurrentHashMap<>();
+    private final List<TxListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile TxIndex index;
+
+    public ListeningTxStore(ITransactionStore delegate)
+    {
+        this.delegate = delegate;
+        for (Transaction t : delegate.getAll())
+        {
+            last.put(t.getId(), t.getStatus());
+        }
+    }
+
+    public void addListener(TxListener l)
+    {
+        addListener(l, true);
+    }
+
+    public void addListener(TxListener l, boolean replay)
+    {
+        if (replay)
+        {
+            for (Transaction t : delegate.getAll())
+            {
+                l.onSave(t, null);
+            }
+        }
+        listeners.add(l);
+    }
+
+    public void attachIndex(TxIndex idx)
+    {
+        addListener(idx);
+        index = idx;
+    }
+
+    @Override
+    public void save(Transaction t)
+    {
+        delegate.save(t);
+        Transaction.Status prev = last.put(t.getId(), t.getStatus());
+        for (TxListener l : listeners)
+        {
+            l.onSave(t, prev);
+        }
+    }
+
+    @Override
+    public Transaction find(String txId)
+    {
+        return delegate.find(txId);
+    }
+
+    @Override
+    public List<Transaction> getAll()
+    {
+        return delegate.getAll();
+    }
+
+    @Override
+    public Iterator<Transaction> cursor()
+    {
+        return delegate.cursor();
+    }
+
+    @Override
+    public Spliterator<Transaction> spliterator()
+    {
+        return delegate.spliterator();
+    }
+
+    @Override
+    public List<Transaction> findByPayer(String payerId)
+    {
+        TxIndex idx = index;
+        if (idx == null)
+        {
+            return delegate.findByPayer(payerId);
+        }
+        List<Transaction> out = resolve(idx.byPayer(payerId));
+        out.removeIf(t -> !t.getPayer().getId().equals(payerId));
+        return out;
+    }
+
+    @Override
+    public List<Transaction> findByStatus(Transaction.Status status)
+    {
+        TxIndex idx = index;
+        if (idx == null)
+        {
+            return delegate.findByStatus(status);
+        }
+        List<Transaction> out = resolve(idx.byStatus(status));
+        out.removeIf(t -> t.getStatus() != status);
+        return out;
+    }
+
+    @Override
+    public List<Transaction> findByMethod(String method)
+    {
+        TxIndex idx = index;
+        if (idx == null)
+        {
+            return delegate.findByMethod(method);
+        }
+        List<Transaction> out = resolve(idx.byMethod(method));
+        out.removeIf(t -> !t.getMethod().equals(method));
+        return out;
+    }
+
+    private List<Transaction> resolve(Collection<String> ids)
+    {
+        List<Transaction> out = new ArrayList<>(ids.size());
+        for (String id : ids)
+        {
+            Transaction t = delegate.find(id);
+            if (t != null)
+            {
+                out.add(t);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public <T> T withTxLock(String txId, Supplier<T> action)
+    {
+        return delegate.withTxLock(txId, action);
+    }
+}
+
+class TxIndex implements TxListener
+{
+    private final Map<String, Set<String>> payers = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> methods = new ConcurrentHashMap<>();
+    private final List<Set<String>> statuses = new ArrayList<>();
+
+    public TxIndex()
+    {
+        for (int i = 0; i < Transaction.Status.values().length; i++)
+        {
+            statuses.add(ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    @Override
+    public void onSave(Transaction t, Transaction.Status previous)
+    {
+        String id = t.getId();
+        if (previous == null)
+        {
+            payers.computeIfAbsent(t.getPayer().getId(), k -> ConcurrentHashMap.newKeySet()).add(id);
+            methods.computeIfAbsent(t.getMethod(), k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+        if (previous != t.getStatus())
+        {
+            statuses.get(t.getStatus().ordinal()).add(id);
+            if (previous != null)
+            {
+                statuses.get(previous.ordinal()).remove(id);
+            }
+        }
+    }
+
+    public Set<String> byPayer(String payerId)
+    {
+        return payers.getOrDefault(payerId, Collections.emptySet());
+    }
+
+    public Set<String> byMethod(String method)
+    {
+        return methods.getOrDefault(method, Collections.emptySet());
+    }
+
+    public Set<String> byStatus(Transaction.Status status)
+    {
+        return statuses.get(status.ordinal());
+    }
+}
+
+class ReportAggregates implements TxListener
+{
+    private static final class Cell
+    {
+        private final Transaction.Status status;
+        private final String method;
+        private final String currency;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder amount = new LongAdder();
+
+        private Cell(Transaction.Status status, String method, String currency)
+        {
+            this.status = status;
+            this.method = method;
+            this.currency = currency;
+        }
+    }
+
+    private final Map<String, Cell> cells = new ConcurrentHashMap<>();
+
+    @Override
+    public void onSave(Transaction t, Transaction.Status previous)
+    {
+        Transaction.Status status = t.getStatus();
+        if (status == previous)
+        {
+            return;
+        }
+        long amt = t.getAmt().getAmount();
+        if (previous != null)
+        {
+            Cell old = cell(previous, t.getMethod(), t.getAmt().getCurrency());
+            old.count.decrement();
+            old.amount.add(-amt);
+        }
+        Cell cur = cell(status, t.getMethod(), t.getAmt().getCurrency());
+        cur.count.increment();
+        cur.amount.add(amt);
+    }
+
+    private Cell cell(Transaction.Status status, String method, String currency)
+    {
+        return cells.computeIfAbsent(status + "|" + method + "|" + currency, k -> new Cell(status, method, currency));
+    }
+
+    public long total()
+    {
+        long n = 0;
+        for (Cell c : cells.values())
+        {
+            n += c.count.sum();
+        }
+        return n;
+    }
+
+    public long count(Transaction.Status status)
+    {
+        long n = 0;
+        for (Cell c : cells.values())
+        {
+            if (c.status == status)
+            {
+                n += c.count.sum();
+            }
+        }
+        return n;
+    }
+
+    public Map<String, Long> countByMethod()
+    {
+        Map<String, Long> out = new TreeMap<>();
+        for (Cell c : cells.values())
+        {
+            out.merge(c.method, c.count.sum(), Long::sum);
+        }
+        return out;
+    }
+
+    public Map<String, Long> countByCurrency()
+    {
+        Map<String, Long> out = new TreeMap<>();
+        for (Cell c : cells.values())
+        {
+            out.merge(c.currency, c.count.sum(), Long::sum);
+        }
+        return out;
+    }
+
+    public long amount(Transaction.Status status, String currency)
+    {
+        long n = 0;
+        for (Cell c : cells.values())
+        {
+            if (c.status == status && c.currency.equals(currency))
+            {
+                n += c.amount.sum();
+            }
+        }
+        return n;
+    }
+}
+
+enum Resolution
+{
+    MINUTE(60_000L, 180), HOUR(3_600_000L, 72), DAY(86_400_000L, 90);
+
+    final long millis;
+    final int slots;
+
+    Resolution(long millis, int slots)
+    {
+        this.millis = millis;
+        this.slots = slots;
+    }
+
+    long retention()
+    {
+        return millis * slots;
+    }
+}
+
+class RollupEngine implements TxListener
+{
+    private static final int STATUSES = Transaction.Status.values().length;
+
+    private static final class Ring
+    {
+        private final Resolution res;
+        private final long[] bucket;
+        private final long[] count;
+        private final long[] sum;
+        private final long[] status;
+
+        private Ring(Resolution res)
+        {
+            this.res = res;
+            this.bucket = new long[res.slots];
+            this.count = new long[res.slots];
+            this.sum = new long[res.slots];
+            this.status = new long[res.slots * STATUSES];
+            Arrays.fill(bucket, -1);
+        }
+
+        private int slot(long millis)
+        {
+            long b = millis / res.millis;
+            int i = (int) (b % res.slots);
+            if (bucket[i] != b)
+            {
+                if (bucket[i] > b)
+                {
+                    return -1;
+                }
+                bucket[i] = b;
+                count[i] = 0;
+                sum[i] = 0;
+                Arrays.fill(status, i * STATUSES, (i + 1) * STATUSES, 0);
+            }
+            return i;
+        }
+    }
+
+    private static final class Series
+    {
+        private final Ring[] rings = new Ring[Resolution.values().length];
+
+        private Series()
+        {
+            for (Resolution r : Resolution.values())
+            {
+                rings[r.ordinal()] = new Ring(r);
+            }
+        }
+    }
+
+    private final Map<String, Series> byMethod = new ConcurrentHashMap<>();
+
+    @Override
+    public void onSave(Transaction t, Transaction.Status previous)
+    {
+        Transaction.Status st = t.getStatus();
+        if (st == previous)
+        {
+            return;
+        }
+        Series series = byMethod.computeIfAbsent(t.getMethod(), k -> new Series());
+        long created = t.getTs().getTime();
+        long updated = t.getUpdated().getTime();
+        long amt = t.getAmt().getAmount();
+        synchronized (series)
+        {
+            for (Ring r : series.rings)
+            {
+                if (previous == null)
+                {
+                    int i = r.slot(created);
+                    if (i >= 0)
+                    {
+                        r.count[i]++;
+                        r.sum[i] += amt;
+                    }
+                }
+                int j = r.slot(updated);
+                if (j >= 0)
+                {
+                    r.status[j * STATUSES + st.ordinal()]++;
+                }
+            }
+        }
+    }
+
+    public Set<String> methods()
+    {
+        return new TreeSet<>(byMethod.keySet());
+    }
+
+    public long count(String method, long windowMillis)
+    {
+        return query(method, windowMillis, -1, false);
+    }
+
+    public long sum(String method, long windowMillis)
+    {
+        return query(method, windowMillis, -1, true);
+    }
+
+    public long statusCount(String method, Transaction.Status status, long windowMillis)
+    {
+        return query(method, windowMillis, status.ordinal(), false);
+    }
+
+    private long query(String method, long windowMillis, int status, boolean amounts)
+    {
+        Resolution res = resolutionFor(windowMillis);
+        long now = System.currentTimeMillis();
+        long from = (now - windowMillis) / res.millis;
+        long to = now / res.millis;
+        long total = 0;
+        for (Map.Entry<String, Series> e : byMethod.entrySet())
+        {
+            if (method != null && !method.equals(e.getKey()))
+            {
+                continue;
+            }
+            Series series = e.getValue();
+            synchronized (series)
+            {
+                Ring r = series.rings[res.ordinal()];
+                for (int i = 0; i < res.slots; i++)
+                {
+                    if (r.bucket[i] < from || r.bucket[i] > to)
+                    {
+                        continue;
+                    }
+                    if (status >= 0)
+                    {
+                        total += r.status[i * STATUSES + status];
+                    }
+                    else
+                    {
+                        total += amounts ? r.sum[i] : r.count[i];
+                    }
+                }
+            }
         }
-        return p.pay(req);
+        return total;
     }
 
-    public PayResp refund(String method, String txId, Money amt)
+    private static Resolution resolutionFor(long windowMillis)
     {
-        IPayment p = payments.get(method);
-        if (p instanceof IRefund ref)
+        for (Resolution r : Resolution.values())
         {
-            return ref.refund(txId, amt);
+            if (windowMillis < r.retention())
+            {
+                return r;
+            }
         }
-        return new PayResp("", false, "refund not supported");
+        throw new IllegalArgumentException("window exceeds rollup retention: " + windowMillis + " ms");
     }
+}
 
-    public Transaction find(String txId)
+class TxStats
+{
+    private long count;
+    private long amount;
+    private final long[] byStatus = new long[Transaction.Status.values().length];
+
+    public void add(Transaction t)
     {
-        return s.find(txId);
+        count++;
+        amount += t.getAmt().getAmount();
+        byStatus[t.getStatus().ordinal()]++;
     }
-}
 
-class ValidationException extends Exception
-{
-    public ValidationException(String message)
+    public TxStats merge(TxStats o)
     {
-        super(message);
+        count += o.count;
+        amount += o.amount;
+        for (int i = 0; i < byStatus.length; i++)
+        {
+            byStatus[i] += o.byStatus[i];
+        }
+        return this;
     }
-}
 
-class BankTransfer implements IPayment, IRefund
-{
-    private final ITransactionStore store;
-    private final IdGen idg;
+    public long getCount()
+    {
+        return count;
+    }
 
-    public BankTransfer(ITransactionStore s, IdGen idg)
+    public long getAmount()
     {
-        this.store = s;
-        this.idg = idg;
+        return amount;
     }
 
-    @Override
-    public PayResp pay(PayReq req)
+    public long getCount(Transaction.Status status)
     {
-        String tx = idg.next("BT-");
-        Transaction t = new Transaction(tx, "BANK_TRANSFER", req.getPayer(), req.getAmt(), Transaction.Status.PENDING);
-        store.save(t);
-        boolean ok = simulateTransfer();
-        if (ok)
-        {
-            t.setStatus(Transaction.Status.SUCCESS);
-            store.save(t);
-            return new PayResp(tx, true, "bank transfer success");
-        }
-        else
-        {
-            t.setStatus(Transaction.Status.FAILED);
-            store.save(t);
-            return new PayResp(tx, false, "bank transfer failed");
-        }
+        return byStatus[status.ordinal()];
     }
 
-    @Override
-    public PayResp refund(String txId, Money amt)
+    public double ratio(Transaction.Status status)
     {
-        Transaction t = store.find(txId);
-        if (t == null)
-        {
-            return new PayResp("", false, "tx not found");
-        }
-        if (!t.getMethod().equals("BANK_TRANSFER"))
-        {
-            return new PayResp(txId, false, "method mismatch");
-        }
-        Transaction r = new Transaction(idg.next("R-"), "BT-REFUND", t.getPayer(), amt,
-                Transaction.Status.REFUNDED);
-        store.save(r);
-        t.setStatus(Transaction.Status.REFUNDED);
-        store.save(t);
-        return new PayResp(r.getId(), true, "refund success");
+        return count == 0 ? 0 : (double) byStatus[status.ordinal()] / count;
     }
 
-    private boolean simulateTransfer()
+    @Override
+    public String toString()
     {
-        return true;
+        return "count=" + count + " amount=" + amount + " byStatus=" + Arrays.toString(byStatus);
     }
 }
 
-interface IRecurringPayment
+class TxQuery
 {
-    void schedule(PayReq req, int intervalDays);
+    private final ITransactionStore store;
+    private Predicate<Transaction> filter = t -> true;
+    private boolean parallel = true;
 
-    void processRecurring();
-}
+    private TxQuery(ITransactionStore store)
+    {
+        this.store = store;
+    }
 
-class RecurringTransaction extends Transaction
-{
-    private final int intervalDays;
-    private Date nextRun;
+    public static TxQuery from(ITransactionStore store)
+    {
+        return new TxQuery(store);
+    }
 
-    public RecurringTransaction(String id, String method, Payer p, Money amt, Status st, int interval)
+    public TxQuery where(Predicate<Transaction> p)
     {
-        super(id, method, p, amt, st);
-        this.intervalDays = interval;
-        this.nextRun = new Date(System.currentTimeMillis() + interval * 24 * 60 * 60 * 1000L);
+        filter = filter.and(p);
+        return this;
     }
 
-    public int getIntervalDays()
+    public TxQuery parallel(boolean parallel)
     {
-        return intervalDays;
+        this.parallel = parallel;
+        return this;
     }
 
-    public Date getNextRun()
+    public TxStats aggregate()
     {
-        return nextRun;
+        return StreamSupport.stream(store.spliterator(), parallel)
+                .filter(filter)
+                .collect(Collector.of(TxStats::new, TxStats::add, TxStats::merge));
     }
 
-    public void updateNextRun()
+    public <K> Map<K, TxStats> groupBy(Function<Transaction, K> key)
     {
-        this.nextRun = new Date(nextRun.getTime() + intervalDays * 24 * 60 * 60 * 1000L);
+        return StreamSupport.stream(store.spliterator(), parallel)
+                .filter(filter)
+                .collect(Collectors.groupingBy(key, HashMap::new,
+                        Collector.of(TxStats::new, TxStats::add, TxStats::merge)));
     }
 
-    public void setNextRun(Date nextRun)
+    public static Map<String, TxStats> totalsPerPayer(ITransactionStore store)
     {
-        this.nextRun = nextRun;
+        return from(store).where(t -> t.getStatus() == Transaction.Status.SUCCESS)
+                .groupBy(t -> t.getPayer().getId() + "/" + t.getAmt().getCurrency());
     }
-}
 
-class RecurringManager
-{
-    public void saveRecurring(List<RecurringTransaction> recurring, String filename)
+    public static Map<String, TxStats> totalsPerCurrency(ITransactionStore store)
     {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(filename)))
-        {
-            for (RecurringTransaction rt : recurring)
-            {
-                pw.println(rt.getId() + "," + rt.getPayer().getId() + "," + rt.getPayer().getName() + "," +
-                        rt.getAmt().getAmount() + "," + rt.getAmt().getCurrency() + "," + rt.getIntervalDays() + "," + rt.getNextRun().getTime());
-            }
-        }
-        catch (IOException e)
-        {
-            System.out.println("Error saving recurring: " + e.getMessage());
-        }
+        return from(store).where(t -> t.getStatus() == Transaction.Status.SUCCESS)
+                .groupBy(t -> t.getAmt().getCurrency());
     }
 
-    public List<RecurringTransaction> loadRecurring(String filename)
+    public static Map<String, Double> refundRatioPerMethod(ITransactionStore store)
     {
-        List<RecurringTransaction> recurring = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(filename)))
-        {
-            String line;
-            while ((line = br.readLine()) != null)
-            {
-                String[] parts = line.split(",");
-                if (parts.length == 7)
-                {
-                    String id = parts[0];
-                    String payerId = parts[1];
-                    String payerName = parts[2];
-                    long amount = Long.parseLong(parts[3]);
-                    String currency = parts[4];
-                    int interval = Integer.parseInt(parts[5]);
-                    long nextRunTime = Long.parseLong(parts[6]);
-                    Payer payer = new Payer(payerId, payerName);
-                    Money amt = new Money(amount, currency);
-                    RecurringTransaction rt = new RecurringTransaction(id, "RECURRING", payer, amt, Transaction.Status.PENDING, interval);
-                    rt.setNextRun(new Date(nextRunTime));
-                    recurring.add(rt);
-                }
-            }
-        }
-        catch (IOException e)
+        Map<String, Double> out = new TreeMap<>();
+        for (Map.Entry<String, TxStats> e : from(store).where(t -> !t.getMethod().endsWith("-REFUND"))
+                .groupBy(Transaction::getMethod).entrySet())
         {
+            out.put(e.getKey(), e.getValue().ratio(Transaction.Status.REFUNDED));
         }
-        return recurring;
+        return out;
     }
 }
 
-class Scheduler implements IRecurringPayment
+interface PageListener
 {
-    private final List<RecurringTransaction> recurring = new ArrayList<>();
-    private final PaymentService svc;
-    private final IdGen idg;
-    private final RecurringManager rm;
+    boolean onPage(int page, long rows);
+}
 
-    public Scheduler(PaymentService svc, IdGen idg)
+class StreamingReport
+{
+    static final String RULE = "+------------+--------------+-------+--------+----------+";
+
+    private final ITransactionStore store;
+    private final int pageSize;
+    private volatile boolean cancelled;
+
+    public StreamingReport(ITransactionStore store, int pageSize)
     {
-        this.svc = svc;
-        this.idg = idg;
-        this.rm = new RecurringManager();
-        recurring.addAll(rm.loadRecurring("recurring.txt"));
+        if (pageSize <= 0)
+        {
+            throw new IllegalArgumentException("page size must be positive");
+        }
+        this.store = store;
+        this.pageSize = pageSize;
     }
 
-    @Override
-    public void schedule(PayReq req, int intervalDays)
+    public void cancel()
     {
-        String tx = idg.next("REC-");
-        RecurringTransaction rt = new RecurringTransaction(tx, "RECURRING", req.getPayer(), req.getAmt(),
-                Transaction.Status.PENDING, intervalDays);
-        recurring.add(rt);
-        rm.saveRecurring(recurring, "recurring.txt");
+        cancelled = true;
     }
 
-    @Override
-    public void processRecurring()
+    public long write(Writer out, Consumer<Transaction> onRow, PageListener onPage) throws IOException
     {
-        Date now = new Date();
-        for (RecurringTransaction rt : new ArrayList<>(recurring))
+        BufferedWriter w = out instanceof BufferedWriter bw ? bw : new BufferedWriter(out, 64 * 1024);
+        Iterator<Transaction> it = store.cursor();
+        long rows = 0;
+        int page = 0;
+        boolean open = false;
+        while (!cancelled && it.hasNext())
         {
-            if (rt.getNextRun().before(now) || rt.getNextRun().equals(now))
+            Transaction t = it.next();
+            if (!open)
             {
-                PayReq pr = new PayReq(rt.getPayer(), rt.getAmt());
-                PayResp resp = svc.execute("card", pr);
-                if (resp.isOk())
-                {
-                    rt.updateNextRun();
-                    rm.saveRecurring(recurring, "recurring.txt");
-                }
-                else
+                w.write(RULE);
+                w.newLine();
+                w.write("| TxID       | Method       | Payer | Amount | Status   |");
+                w.newLine();
+                w.write(RULE);
+                w.newLine();
+                open = true;
+            }
+            w.write(String.format("| %-10s | %-12s | %-5s | %-6s | %-8s |",
+                    t.getId(), t.getMethod(), t.getPayer().getName(), t.getAmt().toString(), t.getStatus()));
+            w.newLine();
+            if (onRow != null)
+            {
+                onRow.accept(t);
+            }
+            rows++;
+            if (rows % pageSize == 0)
+            {
+                w.write(RULE);
+                w.newLine();
+                w.flush();
+                open = false;
+                if (onPage != null && !onPage.onPage(++page, rows))
                 {
-                    recurring.remove(rt);
-                    rm.saveRecurring(recurring, "recurring.txt");
+                    return rows;
                 }
             }
         }
+        if (open)
+        {
+            w.write(RULE);
+            w.newLine();
+            w.flush();
+            if (onPage != null)
+            {
+                onPage.onPage(++page, rows);
+            }
+        }
+        w.flush();
+        return rows;
+    }
+
+    public long writeTo(String path, PageListener onPage) throws IOException
+    {
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8),
+                64 * 1024))
+        {
+            return write(w, null, onPage);
+        }
     }
 }
 
 class ReportGenerator
 {
     private final ITransactionStore store;
+    private final ReportAggregates agg;
+    private final RollupEngine rollups;
 
     public ReportGenerator(ITransactionStore store)
+    {
+        this(store, null, null);
+    }
+
+    public ReportGenerator(ITransactionStore store, ReportAggregates agg)
+    {
+        this(store, agg, null);
+    }
+
+    public ReportGenerator(ITransactionStore store, ReportAggregates agg, RollupEngine rollups)
     {
         this.store = store;
+        this.agg = agg;
+        this.rollups = rollups;
     }
 
     public void generateReport()
     {
-        List<Transaction> all = store.getAll();
         System.out.println("==========================================");
         System.out.println("         Transaction Report");
         System.out.println("==========================================");
         System.out.println();
-        if (all.isEmpty())
+        if (!store.cursor().hasNext())
         {
             System.out.println("No transactions found.");
             return;
         }
-        System.out.println("+------------+--------------+-------+--------+----------+");
-        System.out.println("| TxID       | Method       | Payer | Amount | Status   |");
-        System.out.println("+------------+--------------+-------+--------+----------+");
-        int success = 0, failed = 0, pending = 0, refunded = 0;
-        for (Transaction t : all)
+        ReportAggregates counts = agg != null ? agg : new ReportAggregates();
+        Consumer<Transaction> onRow = agg != null ? null : t -> counts.onSave(t, null);
+        try
+        {
+            new StreamingReport(store, 500).write(new OutputStreamWriter(System.out), onRow, null);
+        }
+        catch (IOException e)
         {
-            String status = t.getStatus().toString();
-            switch (t.getStatus())
-            {
-                case SUCCESS -> success++;
-                case FAILED -> failed++;
-                case PENDING -> pending++;
-                case REFUNDED -> refunded++;
-            }
-            System.out.printf("| %-10s | %-12s | %-5s | %-6s | %-8s |\n",
-                    t.getId(), t.getMethod(), t.getPayer().getName(), t.getAmt().toString(), status);
+            System.out.println("Error writing report: " + e.getMessage());
         }
-        System.out.println("+------------+--------------+-------+--------+----------+");
         System.out.println();
+        printSummary(counts);
+    }
+
+    public long exportReport(String path, int pageSize, PageListener onPage) throws IOException
+    {
+        return new StreamingReport(store, pageSize).writeTo(path, onPage);
+    }
+
+    public void generateSummary()
+    {
+        if (agg == null)
+        {
+            generateReport();
+            return;
+        }
+        printSummary(agg);
+    }
+
+    private void printSummary(ReportAggregates agg)
+    {
         System.out.println("Summary:");
-        System.out.println("Total Transactions: " + all.size());
-        System.out.println("Successful: " + success);
-        System.out.println("Failed: " + failed);
-        System.out.println("Pending: " + pending);
-        System.out.println("Refunded: " + refunded);
+        System.out.println("Total Transactions: " + agg.total());
+        System.out.println("Successful: " + agg.count(Transaction.Status.SUCCESS));
+        System.out.println("Failed: " + agg.count(Transaction.Status.FAILED));
+        System.out.println("Pending: " + agg.count(Transaction.Status.PENDING));
+        System.out.println("Refunded: " + agg.count(Transaction.Status.REFUNDED));
+        System.out.println("By method:");
+        for (Map.Entry<String, Long> e : agg.countByMethod().entrySet())
+        {
+            System.out.println("  " + e.getKey() + ": " + e.getValue());
+        }
+        System.out.println("By currency:");
+        for (Map.Entry<String, Long> e : agg.countByCurrency().entrySet())
+        {
+            System.out.println("  " + e.getKey() + ": " + e.getValue() + " (successful volume "
+                    + new Money(agg.amount(Transaction.Status.SUCCESS, e.getKey()), e.getKey()) + ")");
+        }
+        if (rollups != null)
+        {
+            long window = 15 * 60_000L;
+            System.out.println("Last 15 minutes:");
+            for (String method : rollups.methods())
+            {
+                System.out.println("  " + method + ": " + rollups.count(method, window) + " new, "
+                        + rollups.statusCount(method, Transaction.Status.SUCCESS, window) + " succeeded, "
+                        + rollups.statusCount(method, Transaction.Status.FAILED, window) + " failed");
+            }
+        }
         System.out.println();
         System.out.println("Report generated at " + new Date());
     }
@@ -788,6 +5039,7 @@ class PaymentFacade
     private final PaymentService svc;
     private final Scheduler sch;
     private final ReportGenerator rg;
+    private final List<Closeable> closeOnShutdown = new ArrayList<>();
 
     public PaymentFacade(PaymentService svc, Scheduler sch, ReportGenerator rg)
     {
@@ -796,6 +5048,12 @@ class PaymentFacade
         this.rg = rg;
     }
 
+    // closed in registration order once the scheduler has stopped
+    public void closeOnShutdown(Closeable c)
+    {
+        closeOnShutdown.add(c);
+    }
+
     public PayResp pay(String method, Payer payer, long amount, String currency)
     {
         Money m = new Money(amount, currency);
@@ -803,16 +5061,44 @@ class PaymentFacade
         return svc.execute(method, req);
     }
 
+    public CompletableFuture<PayResp> payAsync(String method, Payer payer, long amount, String currency)
+    {
+        Money m = new Money(amount, currency);
+        PayReq req = new PayReq(payer, m);
+        return svc.executeAsync(method, req);
+    }
+
     public void scheduleRecurring(Payer payer, long amount, String currency, int interval)
+    {
+        scheduleRecurring("card", payer, amount, currency, interval);
+    }
+
+    public void scheduleRecurring(String method, Payer payer, long amount, String currency, int interval)
     {
         Money m = new Money(amount, currency);
         PayReq req = new PayReq(payer, m);
-        sch.schedule(req, interval);
+        sch.schedule(method, req, interval);
     }
 
-    public void processRecurring()
+    public RecurringRunReport processRecurring()
+    {
+        return sch.runDue();
+    }
+
+    public void shutdown()
     {
-        sch.processRecurring();
+        sch.stop();
+        for (Closeable c : closeOnShutdown)
+        {
+            try
+            {
+                c.close();
+            }
+            catch (IOException e)
+            {
+                System.out.println("Error closing " + c + ": " + e.getMessage());
+            }
+        }
     }
 
     public void generateReport()
@@ -820,6 +5106,11 @@ class PaymentFacade
         rg.generateReport();
     }
 
+    public long exportReport(String path, int pageSize, PageListener onPage) throws IOException
+    {
+        return rg.exportReport(path, pageSize, onPage);
+    }
+
     public PayResp refund(String method, String txId, Money amt)
     {
         return svc.refund(method, txId, amt);
@@ -829,6 +5120,11 @@ class PaymentFacade
     {
         return svc.find(txId);
     }
+
+    public List<Transaction> history(String payerId)
+    {
+        return svc.findByPayer(payerId);
+    }
 }
 
 class PayerManager
@@ -872,14 +5168,81 @@ class PayerManager
 
 public class Main
 {
-    private static PaymentFacade setupPayments()
+    private static FileTxStore openStore()
+    {
+        try
+        {
+            FileTxStore store = new FileTxStore("transactions.txt", 2, 64 * 1024);
+            store.startCompactor(60_000, 1024 * 1024);
+            return store;
+        }
+        catch (IOException e)
+        {
+            System.out.println("WAL unavailable, falling back to direct writes: " + e.getMessage());
+            return new FileTxStore("transactions.txt");
+        }
+    }
+
+    private static IdGen openIdGen(ITransactionStore store)
+    {
+        String node = System.getProperty("gateway.node");
+        if (node != null)
+        {
+            return new SnowflakeIdGen(Integer.parseInt(node));
+        }
+        try
+        {
+            return new BlockIdGen("ids.txt", 10_000, BlockIdGen.floorOf(store));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            System.out.println("Id block file unavailable, ids restart at 1000: " + e.getMessage());
+            return new IdGen();
+        }
+    }
+
+    private static IBankConnector openBank()
+    {
+        if ("sim".equals(System.getProperty("gateway.bank")))
+        {
+            SimulatedBankConnector sim = new SimulatedBankConnector(LatencyModel.logNormal(50_000, 0.5).withTail(0.01, 1_000_000), 2000, 0.01);
+            return Boolean.getBoolean("gateway.bank.hedge") ? new HedgingBankConnector(sim) : sim;
+        }
+        return IBankConnector.ALWAYS_OK;
+    }
+
+    private static SettlementBatcher openSettlement()
+    {
+        if (!Boolean.getBoolean("gateway.settlement"))
+        {
+            return null;
+        }
+        try
+        {
+            return new SettlementBatcher(Paths.get("settlement"), 500, 2000, new SimulatedSettlementBank(0.01));
+        }
+        catch (IOException e)
+        {
+            System.out.println("Settlement mode unavailable, settling transfers individually: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static PaymentFacade setupPayments(FileTxStore fileStore)
     {
-        ITransactionStore store = new FileTxStore("transactions.txt");
-        IdGen idg = new IdGen();
+        ListeningTxStore store = new ListeningTxStore(fileStore);
+        ReportAggregates agg = new ReportAggregates();
+        store.addListener(agg);
+        RollupEngine rollups = new RollupEngine();
+        store.addListener(rollups, false);
+        store.attachIndex(new TxIndex());
+        IdGen idg = openIdGen(store);
 
         CardPayment card = new CardPayment(store, idg);
-        UpiPayment upi = new UpiPayment(store, idg);
-        BankTransfer bt = new BankTransfer(store, idg);
+        IBankConnector bank = openBank();
+        UpiPayment upi = new UpiPayment(store, idg, bank);
+        SettlementBatcher settlement = openSettlement();
+        BankTransfer bt = new BankTransfer(store, idg, bank, settlement);
 
         PayReqValidator val = new PayReqValidator();
         PaymentService svc = new PaymentService(val, store);
@@ -887,10 +5250,18 @@ public class Main
         svc.register("card", card);
         svc.register("upi", upi);
         svc.register("banktransfer", bt);
+        svc.isolate("upi", new Bulkhead(256, 0), new CircuitBreaker());
+        // a batched transfer normally waits out the batch window, so only a transfer that ran
+        // out of response time counts as slow
+        svc.isolate("banktransfer", new Bulkhead(256, 0), settlement == null ? new CircuitBreaker()
+                : new CircuitBreaker(50, 20, 0.5, 0.5, settlement.getMaxWaitMillis() + settlement.getResponseMillis(),
+                        10_000, 3));
 
         Scheduler sch = new Scheduler(svc, idg);
-        ReportGenerator rg = new ReportGenerator(store);
+        sch.start(60_000);
+        ReportGenerator rg = new ReportGenerator(store, agg, rollups);
         PaymentFacade facade = new PaymentFacade(svc, sch, rg);
+        facade.closeOnShutdown(bt);
         IPayment nb = new IPayment()
         {
             private final ITransactionStore s = store;
@@ -903,9 +5274,12 @@ public class Main
                 Transaction t = new Transaction(tx, "NETBANK", req.getPayer(), req.getAmt(),
                         Transaction.Status.PENDING);
                 s.save(t);
-                t.setStatus(Transaction.Status.SUCCESS);
-                s.save(t);
-                return new PayResp(tx, true, "netbank success");
+                return s.withTxLock(tx, () ->
+                {
+                    t.setStatus(Transaction.Status.SUCCESS);
+                    s.save(t);
+                    return new PayResp(tx, true, "netbank success");
+                });
             }
         };
         svc.register("netbank", nb);
@@ -1063,6 +5437,27 @@ public class Main
                 case 4 ->
                 {
                     System.out.println("\n--- Schedule Recurring Payment ---");
+                    System.out.println("Choose payment method:");
+                    System.out.println("1. card");
+                    System.out.println("2. upi");
+                    System.out.println("3. banktransfer");
+                    System.out.println("4. netbank");
+                    System.out.print("Enter choice: ");
+                    int recMethodChoice = sc.nextInt();
+                    sc.nextLine();
+                    String recMethod;
+                    switch (recMethodChoice)
+                    {
+                        case 1 -> recMethod = "card";
+                        case 2 -> recMethod = "upi";
+                        case 3 -> recMethod = "banktransfer";
+                        case 4 -> recMethod = "netbank";
+                        default ->
+                        {
+                            System.out.println("Invalid payment method choice.");
+                            continue;
+                        }
+                    }
                     System.out.println("Available payers:");
                     for (Payer p : payers)
                     {
@@ -1089,14 +5484,14 @@ public class Main
                     System.out.print("Enter interval in days: ");
                     int interval = sc.nextInt();
                     sc.nextLine();
-                    facade.scheduleRecurring(recPayer, recAmt, "INR", interval);
+                    facade.scheduleRecurring(recMethod, recPayer, recAmt, "INR", interval);
                     System.out.println("Recurring payment scheduled.");
                 }
                 case 5 ->
                 {
                     System.out.println("\n--- Process Recurring Payments ---");
-                    facade.processRecurring();
-                    System.out.println("Recurring payments processed.");
+                    RecurringRunReport report = facade.processRecurring();
+                    System.out.println("Recurring payments processed: " + report);
                 }
                 case 6 ->
                 {
@@ -1137,8 +5532,11 @@ public class Main
         System.out.println("==================================================================");
         System.out.println();
 
-        PaymentFacade facade = setupPayments();
+        FileTxStore fileStore = openStore();
+        PaymentFacade facade = setupPayments(fileStore);
         List<Payer> payers = managePayers(sc);
         runDemo(facade, payers, sc);
+        facade.shutdown();
+        fileStore.close();
     }
 }
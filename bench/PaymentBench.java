@@ -0,0 +1,475 @@
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+public class PaymentBench
+{
+    interface Op
+    {
+        Object run() throws Exception;
+    }
+
+    static final class Bench
+    {
+        private final String name;
+        private final Supplier<Op> setup;
+
+        Bench(String name, Op op)
+        {
+            this(name, () -> op);
+        }
+
+        Bench(String name, Supplier<Op> setup)
+        {
+            this.name = name;
+            this.setup = setup;
+        }
+    }
+
+    static final class Result
+    {
+        private long ops;
+        private long nanos;
+        private long allocBytes;
+        private long gcCount;
+        private long gcMillis;
+    }
+
+    private static volatile Object sink;
+
+    private final int warmupIters;
+    private final int measureIters;
+    private final long iterMillis;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    PaymentBench(int warmupIters, int measureIters, long iterMillis)
+    {
+        this.warmupIters = warmupIters;
+        this.measureIters = measureIters;
+        this.iterMillis = iterMillis;
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private Result iteration(Op op) throws Exception
+    {
+        Result r = new Result();
+        long tid = Thread.currentThread().getId();
+        long gcCount0 = gcCount();
+        long gcTime0 = gcMillis();
+        long alloc0 = threads.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        long deadline = start + iterMillis * 1_000_000L;
+        long ops = 0;
+        long now;
+        do
+        {
+            for (int i = 0; i < 64; i++)
+            {
+                sink = op.run();
+            }
+            ops += 64;
+            now = System.nanoTime();
+        }
+        while (now < deadline);
+        r.nanos = now - start;
+        r.allocBytes = threads.getThreadAllocatedBytes(tid) - alloc0;
+        r.gcCount = gcCount() - gcCount0;
+        r.gcMillis = gcMillis() - gcTime0;
+        r.ops = ops;
+        return r;
+    }
+
+    private void run(Bench b) throws Exception
+    {
+        for (int i = 0; i < warmupIters; i++)
+        {
+            iteration(b.setup.get());
+        }
+        double[] thrpt = new double[measureIters];
+        long ops = 0, nanos = 0, alloc = 0, gcs = 0, gcMs = 0;
+        for (int i = 0; i < measureIters; i++)
+        {
+            Result r = iteration(b.setup.get());
+            thrpt[i] = r.ops * 1e9 / r.nanos;
+            ops += r.ops;
+            nanos += r.nanos;
+            alloc += r.allocBytes;
+            gcs += r.gcCount;
+            gcMs += r.gcMillis;
+        }
+        double mean = 0;
+        for (double t : thrpt)
+        {
+            mean += t;
+        }
+        mean /= thrpt.length;
+        double var = 0;
+        for (double t : thrpt)
+        {
+            var += (t - mean) * (t - mean);
+        }
+        double err = thrpt.length > 1 ? Math.sqrt(var / (thrpt.length - 1)) : 0;
+        double secs = nanos / 1e9;
+        System.out.printf("%-32s %14.0f +- %-10.0f ops/s %12.1f ns/op %10.1f B/op %8.1f MB/s %5d gc %6d ms%n",
+                b.name, mean, err, (double) nanos / ops, (double) alloc / ops, alloc / secs / (1024 * 1024), gcs, gcMs);
+    }
+
+    static final class Load
+    {
+        private final String name;
+        private final int threads;
+        private final Supplier<Op> setup;
+
+        Load(String name, int threads, Supplier<Op> setup)
+        {
+            this.name = name;
+            this.threads = threads;
+            this.setup = setup;
+        }
+    }
+
+    private void runLoad(Load l) throws Exception
+    {
+        Op op = l.setup.get();
+        long[][] lat = new long[l.threads][];
+        int[] counts = new int[l.threads];
+        long deadline = System.nanoTime() + (warmupIters + measureIters) * iterMillis * 1_000_000L;
+        long measureFrom = System.nanoTime() + warmupIters * iterMillis * 1_000_000L;
+        Thread[] workers = new Thread[l.threads];
+        for (int i = 0; i < l.threads; i++)
+        {
+            int w = i;
+            lat[w] = new long[1024];
+            workers[i] = new Thread(() ->
+            {
+                try
+                {
+                    long now;
+                    while ((now = System.nanoTime()) < deadline)
+                    {
+                        sink = op.run();
+                        long end = System.nanoTime();
+                        if (now >= measureFrom)
+                        {
+                            if (counts[w] == lat[w].length)
+                            {
+                                lat[w] = Arrays.copyOf(lat[w], counts[w] * 2);
+                            }
+                            lat[w][counts[w]++] = end - now;
+                        }
+                    }
+                }
+                catch (Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread t : workers)
+        {
+            t.join();
+        }
+        int n = 0;
+        for (int c : counts)
+        {
+            n += c;
+        }
+        long[] all = new long[n];
+        int k = 0;
+        for (int i = 0; i < l.threads; i++)
+        {
+            System.arraycopy(lat[i], 0, all, k, counts[i]);
+            k += counts[i];
+        }
+        Arrays.sort(all);
+        double secs = measureIters * iterMillis / 1000.0;
+        System.out.printf("%-32s %14.0f ops/s  threads %d  p50 %.2f ms  p95 %.2f ms  p99 %.2f ms  p99.9 %.2f ms  max %.2f ms%n",
+                l.name, n / secs, l.threads, pct(all, 0.50), pct(all, 0.95), pct(all, 0.99), pct(all, 0.999),
+                n == 0 ? 0 : all[n - 1] / 1e6);
+    }
+
+    interface AsyncOp
+    {
+        CompletableFuture<?> start();
+    }
+
+    static final class AsyncLoad
+    {
+        private final String name;
+        private final int inFlight;
+        private final Supplier<AsyncOp> setup;
+
+        AsyncLoad(String name, int inFlight, Supplier<AsyncOp> setup)
+        {
+            this.name = name;
+            this.inFlight = inFlight;
+            this.setup = setup;
+        }
+    }
+
+    private void runAsyncLoad(AsyncLoad l) throws Exception
+    {
+        AsyncOp op = l.setup.get();
+        Semaphore window = new Semaphore(l.inFlight);
+        long[][] lat = {new long[1024]};
+        int[] count = new int[1];
+        long deadline = System.nanoTime() + (warmupIters + measureIters) * iterMillis * 1_000_000L;
+        long measureFrom = System.nanoTime() + warmupIters * iterMillis * 1_000_000L;
+        long now;
+        while ((now = System.nanoTime()) < deadline)
+        {
+            window.acquire();
+            long begin = now;
+            op.start().whenComplete((r, e) ->
+            {
+                long end = System.nanoTime();
+                if (begin >= measureFrom)
+                {
+                    synchronized (count)
+                    {
+                        if (count[0] == lat[0].length)
+                        {
+                            lat[0] = Arrays.copyOf(lat[0], count[0] * 2);
+                        }
+                        lat[0][count[0]++] = end - begin;
+                    }
+                }
+                window.release();
+            });
+        }
+        window.acquire(l.inFlight);
+        long[] all;
+        synchronized (count)
+        {
+            all = Arrays.copyOf(lat[0], count[0]);
+        }
+        Arrays.sort(all);
+        int n = all.length;
+        double secs = measureIters * iterMillis / 1000.0;
+        System.out.printf("%-32s %14.0f ops/s  in-flight %d  p50 %.2f ms  p95 %.2f ms  p99 %.2f ms  p99.9 %.2f ms  max %.2f ms%n",
+                l.name, n / secs, l.inFlight, pct(all, 0.50), pct(all, 0.95), pct(all, 0.99), pct(all, 0.999),
+                n == 0 ? 0 : all[n - 1] / 1e6);
+    }
+
+    private static double pct(long[] sorted, double p)
+    {
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+
+    private static List<Load> loads()
+    {
+        List<Load> list = new ArrayList<>();
+        PayReq req = new PayReq(new Payer("1", "bench"), new Money(12222, "INR"));
+        LatencyModel bankLatency = LatencyModel.logNormal(5_000, 0.6).withTail(0.01, 100_000);
+        list.add(new Load("load:upi(sim bank)", 64, () ->
+        {
+            ConcurrentTxStore store = new ConcurrentTxStore();
+            PaymentService svc = new PaymentService(new PayReqValidator(), store);
+            svc.register("upi", new UpiPayment(store, new IdGen(), new SimulatedBankConnector(bankLatency, 500, 0.01)));
+            return () -> svc.execute("upi", req);
+        }));
+        list.add(new Load("load:banktransfer(sim bank)", 64, () ->
+        {
+            ConcurrentTxStore store = new ConcurrentTxStore();
+            PaymentService svc = new PaymentService(new PayReqValidator(), store);
+            svc.register("banktransfer", new BankTransfer(store, new IdGen(), new SimulatedBankConnector(bankLatency, 500, 0.01)));
+            return () -> svc.execute("banktransfer", req);
+        }));
+        return list;
+    }
+
+    private static List<AsyncLoad> asyncLoads()
+    {
+        List<AsyncLoad> list = new ArrayList<>();
+        PayReq req = new PayReq(new Payer("1", "bench"), new Money(12222, "INR"));
+        LatencyModel bankLatency = LatencyModel.logNormal(5_000, 0.6).withTail(0.01, 100_000);
+        list.add(new AsyncLoad("load:upi-async(sim bank)", 1024, () ->
+        {
+            ConcurrentTxStore store = new ConcurrentTxStore();
+            PaymentService svc = new PaymentService(new PayReqValidator(), store);
+            svc.register("upi", new UpiPayment(store, new IdGen(), new SimulatedBankConnector(bankLatency, 500, 0.01)));
+            return () -> svc.executeAsync("upi", req);
+        }));
+        list.add(new AsyncLoad("load:banktransfer-async(sim bank)", 1024, () ->
+        {
+            ConcurrentTxStore store = new ConcurrentTxStore();
+            PaymentService svc = new PaymentService(new PayReqValidator(), store);
+            svc.register("banktransfer", new BankTransfer(store, new IdGen(), new SimulatedBankConnector(bankLatency, 500, 0.01)));
+            return () -> svc.executeAsync("banktransfer", req);
+        }));
+        list.add(new AsyncLoad("load:banktransfer-settlement", 1024, () ->
+        {
+            ConcurrentTxStore store = new ConcurrentTxStore();
+            PaymentService svc = new PaymentService(new PayReqValidator(), store);
+            try
+            {
+                SettlementBatcher batches = new SettlementBatcher(Files.createTempDirectory("paysettle"), 500, 50,
+                        new SimulatedSettlementBank(0.01));
+                svc.register("banktransfer", new BankTransfer(store, new IdGen(), IBankConnector.ALWAYS_OK, batches));
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            return () -> svc.executeAsync("banktransfer", req);
+        }));
+        list.add(new AsyncLoad("load:upi-async-hedged(sim bank)", 1024, () ->
+        {
+            ConcurrentTxStore store = new ConcurrentTxStore();
+            PaymentService svc = new PaymentService(new PayReqValidator(), store);
+            HedgingBankConnector bank = new HedgingBankConnector(new SimulatedBankConnector(bankLatency, 500, 0.01));
+            svc.register("upi", new UpiPayment(store, new IdGen(), bank));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.printf(
+                    "# hedging: calls %d, p95 %d us, hedges fired %d, won %d, duplicate acks %d%n",
+                    bank.getCalls(), bank.getP95Micros(), bank.getHedgesFired(), bank.getHedgesWon(), bank.getDuplicateAcks())));
+            return () -> svc.executeAsync("upi", req);
+        }));
+        return list;
+    }
+
+    private static long gcCount()
+    {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            n += Math.max(0, gc.getCollectionCount());
+        }
+        return n;
+    }
+
+    private static long gcMillis()
+    {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            n += Math.max(0, gc.getCollectionTime());
+        }
+        return n;
+    }
+
+    private static List<Bench> benches(Path dir) throws IOException
+    {
+        List<Bench> list = new ArrayList<>();
+        Payer payer = new Payer("1", "bench");
+        PayReq req = new PayReq(payer, new Money(12222, "INR"));
+
+        Supplier<PaymentService> services = () ->
+        {
+            MemTxStore store = new MemTxStore();
+            IdGen g = new IdGen();
+            PaymentService svc = new PaymentService(new PayReqValidator(), store);
+            svc.register("card", new CardPayment(store, g));
+            svc.register("upi", new UpiPayment(store, g));
+            return svc;
+        };
+        list.add(new Bench("PaymentService.execute(card)", () ->
+        {
+            PaymentService svc = services.get();
+            return (Op) () -> svc.execute("card", req);
+        }));
+        list.add(new Bench("PaymentService.execute(upi)", () ->
+        {
+            PaymentService svc = services.get();
+            return (Op) () -> svc.execute("upi", req);
+        }));
+
+        Transaction tx = new Transaction("UPI-1000", "UPI", payer, new Money(12222, "INR"), Transaction.Status.SUCCESS);
+        String csv = tx.toCsv();
+        list.add(new Bench("Transaction.toCsv", tx::toCsv));
+        list.add(new Bench("Transaction.fromCsv", () -> Transaction.fromCsv(csv)));
+
+        IdGen ids = new IdGen();
+        list.add(new Bench("IdGen.next", () -> ids.next("CARD-")));
+        BlockIdGen blockIds = new BlockIdGen(dir.resolve("ids.txt").toString(), 10_000, 1000);
+        list.add(new Bench("BlockIdGen.next", () -> blockIds.next("CARD-")));
+        SnowflakeIdGen snowflake = new SnowflakeIdGen(1);
+        list.add(new Bench("SnowflakeIdGen.nextId", snowflake::nextId));
+
+        PayReqValidator val = new PayReqValidator();
+        list.add(new Bench("PayReqValidator.validate", () ->
+        {
+            val.validate(req);
+            return req;
+        }));
+
+        MemTxStore mem = new MemTxStore();
+        list.add(new Bench("MemTxStore.save+find", () ->
+        {
+            mem.save(tx);
+            return mem.find(tx.getId());
+        }));
+        ConcurrentTxStore conc = new ConcurrentTxStore();
+        list.add(new Bench("ConcurrentTxStore.save+find", () ->
+        {
+            conc.save(tx);
+            return conc.find(tx.getId());
+        }));
+        FileTxStore file = new FileTxStore(dir.resolve("direct.txt").toString());
+        list.add(new Bench("FileTxStore.save(direct)", () ->
+        {
+            file.save(tx);
+            return file;
+        }));
+        FileTxStore wal = new FileTxStore(dir.resolve("wal.txt").toString(), 0, 64 * 1024);
+        list.add(new Bench("FileTxStore.save(wal)", () ->
+        {
+            wal.save(tx);
+            return wal;
+        }));
+        return list;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int warmup = 3;
+        int iters = 5;
+        long millis = 1000;
+        String filter = "";
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "-wi" -> warmup = Integer.parseInt(args[++i]);
+                case "-i" -> iters = Integer.parseInt(args[++i]);
+                case "-t" -> millis = Long.parseLong(args[++i]);
+                default -> filter = args[i];
+            }
+        }
+        Path dir = Files.createTempDirectory("paybench");
+        PaymentBench pb = new PaymentBench(warmup, iters, millis);
+        System.out.printf("# warmup %d x %d ms, measurement %d x %d ms, tmp %s%n", warmup, millis, iters, millis, dir);
+        for (Bench b : benches(dir))
+        {
+            if (b.name.contains(filter))
+            {
+                pb.run(b);
+            }
+        }
+        for (Load l : loads())
+        {
+            if (l.name.contains(filter))
+            {
+                pb.runLoad(l);
+            }
+        }
+        for (AsyncLoad l : asyncLoads())
+        {
+            if (l.name.contains(filter))
+            {
+                pb.runAsyncLoad(l);
+            }
+        }
+    }
+}